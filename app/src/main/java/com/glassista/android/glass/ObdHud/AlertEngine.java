@@ -0,0 +1,313 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.glassista.android.glass.ObdHud;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Evaluates threshold rules, such as a shift light, on every sample.
+ * <p>
+ * Rules are written one per line:
+ * <pre>
+ * shift: rpm > 8000 && gear >= 2 sound
+ * wide open: throttle > 90 for 500 ms
+ * </pre>
+ * An optional name ends with a colon, conditions compare a channel of the
+ * {@link ChannelRegistry} with an integer using {@code > >= < <= ==} and are joined with
+ * {@code &&}, {@code for N ms} makes the rule fire only once all conditions have held that
+ * long, and {@code sound} asks for an audible alert as well.
+ * <p>
+ * {@link #compile} turns the rules into flat arrays: each condition becomes an inclusive range
+ * that is tested with a single unsigned comparison, so evaluating a sample is a tight loop
+ * over primitives without per-operator branches. Up to {@link #MAX_RULES} rules are
+ * supported; the firing ones are reported as a bit mask.
+ * <p>
+ * Runs as a {@link TelemetryBus} processor, so it sees every sample.
+ */
+public class AlertEngine implements TelemetryBus.Handler {
+
+    private static final String TAG = AlertEngine.class.getSimpleName();
+
+    public static final int MAX_RULES = 64;
+
+    /**
+     * The rules used when none are configured.
+     */
+    public static final String DEFAULT_RULES =
+            "shift: rpm > 8000 && gear >= 2 sound\n"
+            + "wide open: throttle > 90 for 500 ms";
+
+    /**
+     * Told when the set of firing rules changes. Called on the evaluating thread.
+     */
+    public interface Listener {
+        /**
+         * @param activeMask bit {@code r} set for every rule {@code r} that fires now
+         * @param raisedMask the rules that started firing with this sample
+         * @param timestampNanos {@link System#nanoTime()} at which the sample that changed
+         *        the alerts was taken, see {@link SampleIngest}
+         */
+        void onAlertsChanged(long activeMask, long raisedMask, long timestampNanos);
+    }
+
+    // Condition c of rule r is at index conditionEnd[r - 1] <= c < conditionEnd[r]; it holds if
+    // value - low, taken as unsigned, is at most span.
+    private final int[] mChannels;
+    private final int[] mLows;
+    private final int[] mBiasedSpans;
+    private final int[] mConditionEnds;
+    private final long[] mHoldNanos;
+    private final String[] mNames;
+    private final long mSoundMask;
+    private final int mRuleCount;
+
+    // Only touched by the evaluating thread.
+    private final long[] mMatchingSince;
+    private long mMatchingMask;
+    private long mActiveMask;
+    private final long[] mFireCounts;
+    private Listener mListener;
+
+    private AlertEngine(List<int[]> conditions, List<String> names, List<Long> holdNanos,
+            List<Integer> conditionEnds, long soundMask) {
+        int count = conditions.size();
+        mChannels = new int[count];
+        mLows = new int[count];
+        mBiasedSpans = new int[count];
+        for (int c = 0; c < count; c++) {
+            int[] condition = conditions.get(c);
+            mChannels[c] = condition[0];
+            mLows[c] = condition[1];
+            // Biasing both sides by MIN_VALUE turns the signed comparison into an unsigned one.
+            mBiasedSpans[c] = (condition[2] - condition[1]) + Integer.MIN_VALUE;
+        }
+        mRuleCount = names.size();
+        mNames = names.toArray(new String[mRuleCount]);
+        mConditionEnds = new int[mRuleCount];
+        mHoldNanos = new long[mRuleCount];
+        for (int r = 0; r < mRuleCount; r++) {
+            mConditionEnds[r] = conditionEnds.get(r);
+            mHoldNanos[r] = holdNanos.get(r);
+        }
+        mSoundMask = soundMask;
+        mMatchingSince = new long[mRuleCount];
+        mFireCounts = new long[mRuleCount];
+    }
+
+    /**
+     * Compiles rules, one per line. Blank lines and lines starting with {@code #} are ignored,
+     * as are rules that don't parse, which are logged.
+     */
+    public static AlertEngine compile(String rules, ChannelRegistry channels) {
+        List<int[]> conditions = new ArrayList<int[]>();
+        List<String> names = new ArrayList<String>();
+        List<Long> holdNanos = new ArrayList<Long>();
+        List<Integer> conditionEnds = new ArrayList<Integer>();
+        long soundMask = 0;
+        for (String line : rules.split("\n")) {
+            line = line.trim();
+            if (line.length() == 0 || line.startsWith("#")) {
+                continue;
+            }
+            if (names.size() == MAX_RULES) {
+                Log.w(TAG, "ignoring rules after the first " + MAX_RULES);
+                break;
+            }
+            int conditionCount = conditions.size();
+            try {
+                String name = line;
+                int colon = line.indexOf(':');
+                if (colon >= 0) {
+                    name = line.substring(0, colon).trim();
+                    line = line.substring(colon + 1);
+                }
+                String[] tokens = line.trim().split("\\s+");
+                int t = 0;
+                long hold = 0;
+                boolean sound = false;
+                while (true) {
+                    if (t + 3 > tokens.length) {
+                        throw new IllegalArgumentException("expected a condition");
+                    }
+                    conditions.add(parseCondition(tokens[t], tokens[t + 1], tokens[t + 2],
+                            channels));
+                    t += 3;
+                    if (t < tokens.length && tokens[t].equals("&&")) {
+                        t++;
+                    } else {
+                        break;
+                    }
+                }
+                if (t < tokens.length && tokens[t].equals("for")) {
+                    if (t + 3 > tokens.length || !tokens[t + 2].equals("ms")) {
+                        throw new IllegalArgumentException("expected for N ms");
+                    }
+                    hold = Long.parseLong(tokens[t + 1]) * 1000000L;
+                    t += 3;
+                }
+                if (t < tokens.length && tokens[t].equals("sound")) {
+                    sound = true;
+                    t++;
+                }
+                if (t != tokens.length) {
+                    throw new IllegalArgumentException("unexpected " + tokens[t]);
+                }
+                if (sound) {
+                    soundMask |= 1L << names.size();
+                }
+                names.add(name);
+                holdNanos.add(hold);
+                conditionEnds.add(conditions.size());
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "ignoring rule \"" + line + "\": " + e.getMessage());
+                while (conditions.size() > conditionCount) {
+                    conditions.remove(conditions.size() - 1);
+                }
+            }
+        }
+        return new AlertEngine(conditions, names, holdNanos, conditionEnds, soundMask);
+    }
+
+    /**
+     * Returns {channel, low, high} for a condition, the inclusive range of values that
+     * satisfy it.
+     */
+    private static int[] parseCondition(String channelName, String operator, String operand,
+            ChannelRegistry channels) {
+        int channel = channels.getId(channelName);
+        if (channel < 0) {
+            throw new IllegalArgumentException("unknown channel " + channelName);
+        }
+        int value = Integer.parseInt(operand);
+        int low = Integer.MIN_VALUE;
+        int high = Integer.MAX_VALUE;
+        if (operator.equals(">")) {
+            if (value == Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("never true: " + operator + " " + operand);
+            }
+            low = value + 1;
+        } else if (operator.equals(">=")) {
+            low = value;
+        } else if (operator.equals("<")) {
+            if (value == Integer.MIN_VALUE) {
+                throw new IllegalArgumentException("never true: " + operator + " " + operand);
+            }
+            high = value - 1;
+        } else if (operator.equals("<=")) {
+            high = value;
+        } else if (operator.equals("==")) {
+            low = value;
+            high = value;
+        } else {
+            throw new IllegalArgumentException("unknown operator " + operator);
+        }
+        return new int[] {channel, low, high};
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public int getRuleCount() {
+        return mRuleCount;
+    }
+
+    public String getName(int rule) {
+        return mNames[rule];
+    }
+
+    /**
+     * Returns the rules that asked for an audible alert, as a bit mask.
+     */
+    public long getSoundMask() {
+        return mSoundMask;
+    }
+
+    @Override
+    public void onSamples(TelemetryHistory.Range samples) {
+        int[][] values = samples.values;
+        for (int i = 0; i < samples.count; i++) {
+            evaluate(values, i, samples.timestamps[i]);
+        }
+    }
+
+    /**
+     * Evaluates the rules against sample {@code index} of {@code values}, which are indexed by
+     * channel and then by sample.
+     *
+     * @return the rules that fire, as a bit mask
+     */
+    public long evaluate(int[][] values, int index, long timestampNanos) {
+        long matching = 0;
+        int c = 0;
+        for (int r = 0; r < mRuleCount; r++) {
+            int end = mConditionEnds[r];
+            boolean match = true;
+            for (; c < end; c++) {
+                match &= values[mChannels[c]][index] - mLows[c] + Integer.MIN_VALUE
+                        <= mBiasedSpans[c];
+            }
+            if (match) {
+                matching |= 1L << r;
+            }
+        }
+
+        // Only rules that just started matching need their start time, and only held ones
+        // need checking against it.
+        long started = matching & ~mMatchingMask;
+        mMatchingMask = matching;
+        long active = 0;
+        for (long bits = matching; bits != 0; bits &= bits - 1) {
+            int r = Long.numberOfTrailingZeros(bits);
+            if ((started & (1L << r)) != 0) {
+                mMatchingSince[r] = timestampNanos;
+            }
+            if (timestampNanos - mMatchingSince[r] >= mHoldNanos[r]) {
+                active |= 1L << r;
+            }
+        }
+
+        if (active != mActiveMask) {
+            long raised = active & ~mActiveMask;
+            mActiveMask = active;
+            for (long bits = raised; bits != 0; bits &= bits - 1) {
+                mFireCounts[Long.numberOfTrailingZeros(bits)]++;
+            }
+            Listener listener = mListener;
+            if (listener != null) {
+                listener.onAlertsChanged(active, raised, timestampNanos);
+            }
+        }
+        return active;
+    }
+
+    /**
+     * Returns how often each rule fired. Safe to call from any thread; the counts may be a
+     * few samples out of date.
+     */
+    public String getStats() {
+        StringBuilder sb = new StringBuilder("alerts");
+        for (int r = 0; r < mRuleCount; r++) {
+            sb.append(String.format(Locale.US, " %s %dx", mNames[r], mFireCounts[r]));
+        }
+        return sb.toString();
+    }
+}
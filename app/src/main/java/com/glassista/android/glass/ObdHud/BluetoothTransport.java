@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.glassista.android.glass.ObdHud;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.UUID;
+
+/**
+ * RFCOMM link to the Torque plugin on the phone.
+ */
+public class BluetoothTransport implements Transport {
+
+    private static final String TAG = BluetoothTransport.class.getSimpleName();
+
+    private final BluetoothAdapter mAdapter;
+    private final BluetoothDevice mDevice;
+    private final UUID mUuid;
+    private volatile BluetoothSocket mSocket;
+
+    /**
+     * @param uuid service record UUID, also used by the server code
+     */
+    public BluetoothTransport(BluetoothAdapter adapter, BluetoothDevice device, UUID uuid) {
+        mAdapter = adapter;
+        mDevice = device;
+        mUuid = uuid;
+    }
+
+    public BluetoothDevice getDevice() {
+        return mDevice;
+    }
+
+    @Override
+    public InputStream connect() throws IOException {
+        Log.v(TAG, "before createRfcommSocketToServiceRecord");
+        BluetoothSocket socket = mDevice.createRfcommSocketToServiceRecord(mUuid);
+        Log.v(TAG, "after createRfcommSocketToServiceRecord");
+        mSocket = socket;
+
+        // Cancel discovery because it will slow down the connection
+        mAdapter.cancelDiscovery();
+
+        // Connect the device through the socket. This will block
+        // until it succeeds or throws an exception
+        socket.connect();
+        return socket.getInputStream();
+    }
+
+    @Override
+    public void close() {
+        BluetoothSocket socket = mSocket;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                Log.e(TAG, "socket close exception:", e);
+            }
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "bluetooth " + mDevice.getName() + " " + mDevice.getAddress();
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.glassista.android.glass.ObdHud;
+
+/**
+ * Names the telemetry channels and maps them to the integer ids that index every per-channel
+ * array, from the wire protocol through the history to the HUD.
+ * <p>
+ * Ids are small and dense, so per-channel state lives in plain arrays and a set of channels
+ * fits in a long bit mask. The ids of the four legacy Torque fields equal their position in
+ * the legacy record. Channels are registered at startup; lookups by name are meant for setup
+ * code, not for the per-sample path.
+ */
+public class ChannelRegistry {
+
+    /** Channel ids are below this. */
+    public static final int MAX_CHANNELS = 64;
+
+    public static final int CHANNEL_RPM = 0;
+    public static final int CHANNEL_SPEED = 1;
+    public static final int CHANNEL_THROTTLE = 2;
+    public static final int CHANNEL_GEAR = 3;
+    public static final int CHANNEL_COOLANT_TEMP = 4;
+    public static final int CHANNEL_BOOST = 5;
+
+    private final String[] mNames = new String[MAX_CHANNELS];
+    private int mChannelCount;
+
+    /**
+     * Returns a registry of the channels the Torque plugin sends.
+     */
+    public static ChannelRegistry createDefault() {
+        ChannelRegistry registry = new ChannelRegistry();
+        registry.register(CHANNEL_RPM, "rpm");
+        registry.register(CHANNEL_SPEED, "speed");
+        registry.register(CHANNEL_THROTTLE, "throttle");
+        registry.register(CHANNEL_GEAR, "gear");
+        registry.register(CHANNEL_COOLANT_TEMP, "coolant_temp");
+        registry.register(CHANNEL_BOOST, "boost");
+        return registry;
+    }
+
+    /**
+     * Registers a channel.
+     *
+     * @throws IllegalArgumentException if the id is out of range or taken, or the name is
+     *         taken
+     */
+    public void register(int id, String name) {
+        if (id < 0 || id >= MAX_CHANNELS) {
+            throw new IllegalArgumentException("channel id out of range: " + id);
+        }
+        if (mNames[id] != null || getId(name) >= 0) {
+            throw new IllegalArgumentException("channel already registered: " + id + " " + name);
+        }
+        mNames[id] = name;
+        mChannelCount = Math.max(mChannelCount, id + 1);
+    }
+
+    /**
+     * Returns the id of the named channel, or -1 if there is none.
+     */
+    public int getId(String name) {
+        for (int id = 0; id < mChannelCount; id++) {
+            if (name.equals(mNames[id])) {
+                return id;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns one more than the highest registered id: the size of an array indexed by
+     * channel id.
+     */
+    public int getChannelCount() {
+        return mChannelCount;
+    }
+}
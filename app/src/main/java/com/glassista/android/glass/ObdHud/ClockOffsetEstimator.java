@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.glassista.android.glass.ObdHud;
+
+/**
+ * Maps the sender's sample timestamps onto this device's {@link System#nanoTime()} clock.
+ * <p>
+ * The offset between the clocks is estimated as the smallest difference between receive time
+ * and send time seen recently: the sample that crossed the link fastest carries the least
+ * queuing delay, so mapped timestamps keep the spacing the sender sampled at instead of the
+ * jitter of the link. The minimum is taken over two alternating buckets of
+ * {@link #BUCKET_NANOS}, so it follows drift between the clocks. The constant part of the
+ * link delay can't be told apart from the offset, so a mapped time is when the sample would
+ * have arrived over the fastest link seen, never later than when it actually did.
+ * <p>
+ * Only used from the thread reading the stream.
+ */
+public class ClockOffsetEstimator {
+
+    /**
+     * Length, in nanoseconds, of one bucket of the windowed minimum.
+     */
+    private static final long BUCKET_NANOS = 5000000000L;
+
+    private long mBucketStartNanos;
+    private long mCurrentMin;
+    private long mPreviousMin;
+    private long mLastMappedNanos;
+    private boolean mStarted;
+
+    private final LatencyHistogram mQueuing = new LatencyHistogram("link jitter");
+
+    /**
+     * Forgets the clock offset, e.g. because a new connection may come with a new sender
+     * clock.
+     */
+    public void reset() {
+        mStarted = false;
+        mLastMappedNanos = 0;
+    }
+
+    /**
+     * Takes a sample's send and receive times into account and returns its time on the local
+     * clock. Mapped times never go backwards.
+     *
+     * @param senderMicros timestamp the sender gave the sample
+     * @param receiveNanos {@link System#nanoTime()} at which the sample was read
+     */
+    public long toLocalNanos(long senderMicros, long receiveNanos) {
+        long senderNanos = senderMicros * 1000;
+        long offset = receiveNanos - senderNanos;
+        if (!mStarted) {
+            mStarted = true;
+            mBucketStartNanos = receiveNanos;
+            mCurrentMin = offset;
+            mPreviousMin = offset;
+        } else if (receiveNanos - mBucketStartNanos >= BUCKET_NANOS) {
+            mBucketStartNanos = receiveNanos;
+            mPreviousMin = mCurrentMin;
+            mCurrentMin = offset;
+        }
+        mCurrentMin = Math.min(mCurrentMin, offset);
+
+        long mapped = senderNanos + Math.min(mCurrentMin, mPreviousMin);
+        mQueuing.record(receiveNanos - mapped);
+        if (mapped - mLastMappedNanos < 0 && mLastMappedNanos != 0) {
+            mapped = mLastMappedNanos;
+        }
+        mLastMappedNanos = mapped;
+        return mapped;
+    }
+
+    /**
+     * Returns the current estimate of the local clock minus the sender's, in nanoseconds.
+     */
+    public long getOffsetNanos() {
+        return Math.min(mCurrentMin, mPreviousMin);
+    }
+
+    /**
+     * Returns the distribution of how much later than their mapped time samples arrived.
+     */
+    public LatencyHistogram getJitter() {
+        return mQueuing;
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.glassista.android.glass.ObdHud;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Keeps the link to the Torque source up for as long as the service runs.
+ * <p>
+ * The supervisor connects, streams samples into a {@link SampleIngest} until the link drops,
+ * and then reconnects to the same source. The first reconnect after a working connection is
+ * immediate; after that, failed attempts back off exponentially with jitter, up to
+ * {@link #MAX_BACKOFF_MILLIS}. A watchdog thread closes the link if a connect hangs or no
+ * bytes arrive for {@link #INACTIVITY_TIMEOUT_MILLIS}, which unblocks the supervisor so it
+ * can reconnect.
+ * <p>
+ * Connect latency, time from the start of a connect to the first sample, and outage time
+ * from losing the link to the first sample after it are recorded in histograms.
+ */
+public class ConnectionSupervisor extends Thread implements SampleIngest.FirstSampleListener {
+
+    private static final String TAG = ConnectionSupervisor.class.getSimpleName();
+
+    public static final int STATE_CONNECTING = 0;
+    public static final int STATE_CONNECTED = 1;
+    public static final int STATE_BACKING_OFF = 2;
+    public static final int STATE_STOPPED = 3;
+
+    private static final String[] STATE_NAMES = {
+            "connecting", "connected", "backing off", "stopped"
+    };
+
+    /**
+     * Delay before the second attempt after a failure; doubles with every further failure.
+     */
+    private static final long INITIAL_BACKOFF_MILLIS = 250;
+
+    private static final long MAX_BACKOFF_MILLIS = 8000;
+
+    /**
+     * Silence on a connected link after which it is considered dead.
+     */
+    private static final long INACTIVITY_TIMEOUT_MILLIS = 3000;
+
+    /**
+     * Longest a connect may take before it is abandoned.
+     */
+    private static final long CONNECT_TIMEOUT_MILLIS = 15000;
+
+    private static final long WATCHDOG_INTERVAL_MILLIS = 250;
+
+    /**
+     * Told about the state of the link. Called on the supervisor thread.
+     */
+    public interface Listener {
+        /**
+         * Called when a connection has delivered its first sample.
+         */
+        void onLinkUp(ConnectionSupervisor supervisor);
+
+        /**
+         * Called after an attempt failed to deliver any samples.
+         *
+         * @param failedAttempts attempts that failed in a row
+         */
+        void onConnectFailed(ConnectionSupervisor supervisor, int failedAttempts);
+    }
+
+    private final Transport mTransport;
+    private final SampleIngest mIngest;
+    private final Random mRandom = new Random();
+    private final Watchdog mWatchdog = new Watchdog();
+    private volatile Listener mListener;
+
+    private volatile boolean mShouldRun = true;
+    private volatile int mState = STATE_CONNECTING;
+    // System.nanoTime() at which the current state was entered.
+    private volatile long mStateNanos;
+
+    private long mConnectStartNanos;
+    // System.nanoTime() at which the last working link was lost, 0 if there is no outage.
+    private long mOutageStartNanos;
+    private int mFailedAttempts;
+    private boolean mGotSample;
+
+    private volatile long mConnectCount;
+    private volatile long mFailureCount;
+    private volatile long mDropoutCount;
+    private volatile long mWatchdogCount;
+
+    private final LatencyHistogram mConnectLatencies = new LatencyHistogram("connect");
+    private final LatencyHistogram mFirstSampleLatencies = new LatencyHistogram("first sample");
+    private final LatencyHistogram mOutages = new LatencyHistogram("outage");
+
+    public ConnectionSupervisor(Transport transport, SampleIngest ingest) {
+        super(TAG);
+        mTransport = transport;
+        mIngest = ingest;
+        ingest.setFirstSampleListener(this);
+    }
+
+    public Transport getTransport() {
+        return mTransport;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Closes the link and stops reconnecting.
+     */
+    public void quit() {
+        mShouldRun = false;
+        mTransport.close();
+        LockSupport.unpark(this);
+        mWatchdog.quit();
+    }
+
+    public int getConnectionState() {
+        return mState;
+    }
+
+    @Override
+    public void run() {
+        mWatchdog.start();
+        try {
+            while (mShouldRun) {
+                connectAndStream();
+                if (mShouldRun) {
+                    backOff();
+                }
+            }
+        } finally {
+            setState(STATE_STOPPED);
+            mWatchdog.quit();
+        }
+        Log.v(TAG, getStats());
+    }
+
+    /**
+     * Makes one connection and streams from it until it drops.
+     */
+    private void connectAndStream() {
+        setState(STATE_CONNECTING);
+        mConnectStartNanos = System.nanoTime();
+        mGotSample = false;
+        Log.v(TAG, "connecting to " + mTransport.getName());
+        InputStream in;
+        try {
+            in = mTransport.connect();
+        } catch (IOException e) {
+            Log.v(TAG, mTransport.getName() + ": " + e.getMessage());
+            mTransport.close();
+            onAttemptFailed();
+            return;
+        }
+        if (!mShouldRun) {
+            // quit() may have closed the transport before the connect assigned its socket,
+            // leaving this one open; another supervisor may already publish to the bus.
+            mTransport.close();
+            return;
+        }
+        mConnectLatencies.record(System.nanoTime() - mConnectStartNanos);
+        mConnectCount++;
+        Log.v(TAG, "connected to " + mTransport.getName());
+
+        setState(STATE_CONNECTED);
+        try {
+            mIngest.run(in);
+        } catch (IOException e) {
+            Log.v(TAG, mTransport.getName() + ": " + e.getMessage());
+        } finally {
+            mTransport.close();
+        }
+
+        if (mGotSample) {
+            // A working link dropped: try again straight away.
+            mDropoutCount++;
+            mFailedAttempts = 0;
+            mOutageStartNanos = System.nanoTime();
+            Log.v(TAG, "lost " + mTransport.getName());
+        } else {
+            onAttemptFailed();
+        }
+    }
+
+    private void onAttemptFailed() {
+        mFailureCount++;
+        mFailedAttempts++;
+        Listener listener = mListener;
+        if (listener != null && mShouldRun) {
+            listener.onConnectFailed(this, mFailedAttempts);
+        }
+    }
+
+    @Override
+    public void onFirstSample(long timestampNanos) {
+        mGotSample = true;
+        mFirstSampleLatencies.record(timestampNanos - mConnectStartNanos);
+        if (mOutageStartNanos != 0) {
+            mOutages.record(timestampNanos - mOutageStartNanos);
+            mOutageStartNanos = 0;
+        }
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onLinkUp(this);
+        }
+    }
+
+    /**
+     * Waits before the next attempt: not at all after a working link dropped, otherwise an
+     * exponentially growing, jittered delay.
+     */
+    private void backOff() {
+        if (mFailedAttempts == 0) {
+            return;
+        }
+        long delay = Math.min(MAX_BACKOFF_MILLIS,
+                INITIAL_BACKOFF_MILLIS << Math.min(mFailedAttempts - 1, 16));
+        // Equal jitter: half the delay fixed, half random, so retries don't synchronize.
+        delay = delay / 2 + (long) (mRandom.nextDouble() * (delay / 2));
+        setState(STATE_BACKING_OFF);
+        Log.v(TAG, "retrying in " + delay + " ms after " + mFailedAttempts + " failures");
+
+        long deadline = System.nanoTime() + delay * 1000000L;
+        long remaining;
+        while (mShouldRun && (remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(this, remaining);
+        }
+    }
+
+    private void setState(int state) {
+        mStateNanos = System.nanoTime();
+        mState = state;
+    }
+
+    /**
+     * Returns the connection counters and latency summaries, one per line.
+     */
+    public String getStats() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US,
+                "link %s: %d connects, %d failures, %d dropouts, %d watchdog\n",
+                STATE_NAMES[mState], mConnectCount, mFailureCount, mDropoutCount,
+                mWatchdogCount));
+        sb.append(mConnectLatencies.summary()).append('\n');
+        sb.append(mFirstSampleLatencies.summary()).append('\n');
+        sb.append(mOutages.summary());
+        return sb.toString();
+    }
+
+    /**
+     * Closes the link when a connect hangs or a connected link goes quiet.
+     */
+    private class Watchdog extends Thread {
+        private volatile boolean mWatchdogRunning = true;
+
+        Watchdog() {
+            super(TAG + "-watchdog");
+        }
+
+        void quit() {
+            mWatchdogRunning = false;
+            LockSupport.unpark(this);
+        }
+
+        @Override
+        public void run() {
+            while (mWatchdogRunning) {
+                LockSupport.parkNanos(this, WATCHDOG_INTERVAL_MILLIS * 1000000L);
+                long now = System.nanoTime();
+                int state = mState;
+                long idle;
+                long timeout;
+                if (state == STATE_CONNECTED) {
+                    idle = now - Math.max(mIngest.getLastReadNanos(), mStateNanos);
+                    timeout = INACTIVITY_TIMEOUT_MILLIS;
+                } else if (state == STATE_CONNECTING) {
+                    idle = now - mStateNanos;
+                    timeout = CONNECT_TIMEOUT_MILLIS;
+                } else {
+                    continue;
+                }
+                if (idle > timeout * 1000000L && mState == state) {
+                    mWatchdogCount++;
+                    Log.w(TAG, "watchdog: no progress " + STATE_NAMES[state] + " for "
+                            + idle / 1000000 + " ms, closing " + mTransport.getName());
+                    mTransport.close();
+                    // Don't fire again for the same stall.
+                    mStateNanos = now;
+                }
+            }
+        }
+    }
+}
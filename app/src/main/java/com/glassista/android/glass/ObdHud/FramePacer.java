@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.glassista.android.glass.ObdHud;
+
+import android.os.Handler;
+import android.view.Choreographer;
+
+import java.util.Locale;
+
+/**
+ * Schedules frames against absolute {@link System#nanoTime()} deadlines, so the cadence
+ * neither drifts with rounding nor accumulates sleep overshoot.
+ * <p>
+ * Deadlines lie on a grid one frame period apart. A frame that starts late doesn't move the
+ * grid; if it is late by whole periods, those frames are skipped rather than rendered back to
+ * back. Once {@link VsyncSampler} has seen the display refresh, the period is rounded to whole
+ * refresh intervals and the grid is aligned with them.
+ * <p>
+ * All methods except {@link #setVsync} must be called from the render thread.
+ */
+public class FramePacer {
+
+    private volatile long mVsyncNanos;
+    private volatile long mVsyncPeriodNanos;
+
+    private long mPeriodNanos;
+    private long mRequestedPeriodNanos;
+    // The next frame's deadline, 0 before the first frame.
+    private long mDeadlineNanos;
+
+    // How late frames started that were waiting for their deadline.
+    private final LatencyHistogram mJitter = new LatencyHistogram("pacing jitter");
+    private volatile long mFrameCount;
+    private volatile long mMissedCount;
+
+    /**
+     * Sets the frame period the pacer aims for. Takes effect from the next deadline.
+     */
+    public void setPeriod(long periodNanos) {
+        if (periodNanos == mRequestedPeriodNanos && mVsyncPeriodNanos == 0) {
+            return;
+        }
+        mRequestedPeriodNanos = periodNanos;
+        long vsyncPeriod = mVsyncPeriodNanos;
+        if (vsyncPeriod > 0) {
+            // The display can only show whole refresh intervals.
+            periodNanos = Math.max(1, (periodNanos + vsyncPeriod / 2) / vsyncPeriod)
+                    * vsyncPeriod;
+        }
+        if (periodNanos != mPeriodNanos) {
+            if (mDeadlineNanos != 0) {
+                mDeadlineNanos += periodNanos - mPeriodNanos;
+            }
+            mPeriodNanos = periodNanos;
+        }
+    }
+
+    /**
+     * Tells the pacer when the display last refreshed and how often it does. May be called from
+     * any thread.
+     */
+    public void setVsync(long vsyncNanos, long vsyncPeriodNanos) {
+        mVsyncNanos = vsyncNanos;
+        mVsyncPeriodNanos = vsyncPeriodNanos;
+    }
+
+    /**
+     * Returns the {@link System#nanoTime()} at which the next frame is due, which may be in the
+     * past.
+     */
+    public long getDeadline() {
+        return mDeadlineNanos;
+    }
+
+    public long getPeriod() {
+        return mPeriodNanos;
+    }
+
+    /**
+     * Records the start of a frame and moves the deadline on.
+     *
+     * @param nowNanos {@link System#nanoTime()} at which the frame starts
+     * @param ready true if the frame had something to show by its deadline; a frame whose data
+     *        only arrived after the deadline isn't late, and starts a new grid
+     */
+    public void onFrameStart(long nowNanos, boolean ready) {
+        mFrameCount++;
+        if (mDeadlineNanos == 0 || !ready) {
+            mDeadlineNanos = align(nowNanos + mPeriodNanos);
+            return;
+        }
+        long late = nowNanos - mDeadlineNanos;
+        mJitter.record(Math.max(0, late));
+        mDeadlineNanos = align(mDeadlineNanos + mPeriodNanos);
+        if (late >= mPeriodNanos) {
+            // Skip the frames that are already overdue rather than catching up.
+            long missed = late / mPeriodNanos;
+            mMissedCount += missed;
+            mDeadlineNanos += missed * mPeriodNanos;
+        }
+    }
+
+    /**
+     * Returns the refresh nearest to {@code nanos}, or {@code nanos} itself if the refresh isn't
+     * known. Rounding to the nearest keeps a grid that is already aligned where it is, even as
+     * the measured refresh wanders a little.
+     */
+    private long align(long nanos) {
+        long vsync = mVsyncNanos;
+        long vsyncPeriod = mVsyncPeriodNanos;
+        if (vsyncPeriod <= 0 || vsync == 0) {
+            return nanos;
+        }
+        long offset = nanos - vsync;
+        long intervals = offset >= 0 ? (offset + vsyncPeriod / 2) / vsyncPeriod
+                : -((-offset + vsyncPeriod / 2) / vsyncPeriod);
+        return vsync + intervals * vsyncPeriod;
+    }
+
+    public long getMissedCount() {
+        return mMissedCount;
+    }
+
+    /**
+     * Returns a summary of the pacing. Safe to call from any thread.
+     */
+    public String getStats() {
+        long vsyncPeriod = mVsyncPeriodNanos;
+        String vsync = vsyncPeriod > 0
+                ? String.format(Locale.US, "%.2f ms", vsyncPeriod / 1e6) : "unknown";
+        return String.format(Locale.US,
+                "%d frames paced at %.1f ms, %d deadlines missed, vsync %s\n%s",
+                mFrameCount, mPeriodNanos / 1e6, mMissedCount, vsync, mJitter.summary());
+    }
+
+    /**
+     * Measures the display refresh with {@link Choreographer} callbacks on the main thread
+     * and passes it to a pacer. Rather than keeping the main thread awake for every refresh,
+     * it measures a few consecutive refreshes and then sleeps for {@link #RESAMPLE_MILLIS}.
+     */
+    public static class VsyncSampler implements Choreographer.FrameCallback, Runnable {
+
+        /**
+         * Consecutive refreshes measured each time.
+         */
+        private static final int SAMPLE_FRAMES = 4;
+
+        private static final long RESAMPLE_MILLIS = 1000;
+
+        private final FramePacer mPacer;
+        private final Handler mHandler = new Handler();
+        private boolean mRunning;
+        private long mLastFrameNanos;
+        private long mMinPeriodNanos;
+        private int mFrames;
+
+        /**
+         * Must be created on the main thread.
+         */
+        public VsyncSampler(FramePacer pacer) {
+            mPacer = pacer;
+        }
+
+        public void start() {
+            if (!mRunning) {
+                mRunning = true;
+                run();
+            }
+        }
+
+        public void stop() {
+            mRunning = false;
+            mHandler.removeCallbacks(this);
+            Choreographer.getInstance().removeFrameCallback(this);
+        }
+
+        /**
+         * Starts a round of measurements.
+         */
+        @Override
+        public void run() {
+            mLastFrameNanos = 0;
+            mMinPeriodNanos = Long.MAX_VALUE;
+            mFrames = 0;
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if (!mRunning) {
+                return;
+            }
+            if (mLastFrameNanos != 0) {
+                // The shortest gap is one refresh; longer ones are refreshes that were skipped.
+                mMinPeriodNanos = Math.min(mMinPeriodNanos, frameTimeNanos - mLastFrameNanos);
+            }
+            mLastFrameNanos = frameTimeNanos;
+            if (++mFrames < SAMPLE_FRAMES) {
+                Choreographer.getInstance().postFrameCallback(this);
+                return;
+            }
+            mPacer.setVsync(frameTimeNanos, mMinPeriodNanos);
+            mHandler.postDelayed(this, RESAMPLE_MILLIS);
+        }
+    }
+}
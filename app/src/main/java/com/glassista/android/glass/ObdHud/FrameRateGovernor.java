@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.glassista.android.glass.ObdHud;
+
+import android.util.Log;
+
+import java.util.Locale;
+
+/**
+ * Picks the rate at which the HUD repaints while data is changing.
+ * <p>
+ * The rate follows how fast rpm and speed change: the full rate while accelerating or shifting,
+ * less while cruising and least while stopped. It steps up at once but only steps down after
+ * the car has been calmer for {@link #STEP_DOWN_HOLD_NANOS}, so it doesn't flap. On top of
+ * that the rate is capped while the battery is warm or low, whatever the car is doing.
+ * <p>
+ * Samples are fed from one thread, the battery state from another and the rate is applied by
+ * the render thread, which also accounts how long each rate was in effect.
+ */
+public class FrameRateGovernor {
+
+    private static final String TAG = FrameRateGovernor.class.getSimpleName();
+
+    /**
+     * The rates the governor picks from, fastest first, in frames per second.
+     */
+    public static final int[] LEVEL_FPS = {33, 20, 10, 5};
+
+    public static final int LEVEL_FAST = 0;
+    public static final int LEVEL_MODERATE = 1;
+    public static final int LEVEL_CRUISE = 2;
+    public static final int LEVEL_STOPPED = 3;
+
+    public static final int REASON_DYNAMICS = 0;
+    public static final int REASON_THERMAL = 1;
+    public static final int REASON_BATTERY = 2;
+
+    private static final String[] REASON_NAMES = {"dynamics", "thermal", "battery"};
+
+    /**
+     * Rpm change per second that counts as fully dynamic.
+     */
+    private static final float FAST_RPM_PER_SECOND = 2000f;
+
+    /**
+     * Speed change per second that counts as fully dynamic.
+     */
+    private static final float FAST_SPEED_PER_SECOND = 8f;
+
+    /**
+     * Activity, as a fraction of fully dynamic, from which each of the faster levels is used.
+     */
+    private static final float FAST_ACTIVITY = 0.6f;
+    private static final float MODERATE_ACTIVITY = 0.2f;
+    private static final float IDLE_ACTIVITY = 0.05f;
+
+    /**
+     * Time constant, in nanoseconds, of the smoothing applied to the activity.
+     */
+    private static final long ACTIVITY_TIME_CONSTANT_NANOS = 300000000L;
+
+    /**
+     * How long, in nanoseconds, the car must stay calmer before the rate steps down.
+     */
+    private static final long STEP_DOWN_HOLD_NANOS = 2000000000L;
+
+    /**
+     * How far, in tenths of a degree, the battery must cool below a threshold to lift its cap.
+     */
+    private static final int THERMAL_HYSTERESIS_TENTHS = 10;
+
+    public static final int DEFAULT_WARM_TENTHS_C = 400;
+    public static final int DEFAULT_HOT_TENTHS_C = 450;
+    public static final int DEFAULT_LOW_BATTERY_PERCENT = 20;
+    public static final int DEFAULT_CRITICAL_BATTERY_PERCENT = 10;
+
+    // Only touched by the thread feeding samples.
+    private long mLastSampleNanos;
+    private int mLastRpm;
+    private int mLastSpeed;
+    private float mActivity;
+    private long mCalmerSinceNanos;
+    private volatile int mDynamicLevel = LEVEL_FAST;
+
+    // Only touched by the thread reporting the battery state.
+    private int mWarmTenthsC = DEFAULT_WARM_TENTHS_C;
+    private int mHotTenthsC = DEFAULT_HOT_TENTHS_C;
+    private int mLowBatteryPercent = DEFAULT_LOW_BATTERY_PERCENT;
+    private int mCriticalBatteryPercent = DEFAULT_CRITICAL_BATTERY_PERCENT;
+    private int mThermalLevel = LEVEL_FAST;
+    private volatile int mCapLevel = LEVEL_FAST;
+    private volatile int mCapReason = REASON_DYNAMICS;
+    private volatile int mTemperatureTenthsC;
+    private volatile int mBatteryPercent = -1;
+
+    // Only touched by the render thread; read by others for statistics.
+    private volatile int mLevel = LEVEL_FAST;
+    private volatile int mReason = REASON_DYNAMICS;
+    private long mLevelSinceNanos;
+    private final long[] mLevelNanos = new long[LEVEL_FPS.length];
+    private final long[] mReasonNanos = new long[REASON_NAMES.length];
+    private volatile long mChangeCount;
+
+    /**
+     * Sets the battery temperatures, in tenths of a degree Celsius, from which the rate is
+     * capped at {@link #LEVEL_CRUISE} and {@link #LEVEL_STOPPED}.
+     */
+    public void setThermalThresholds(int warmTenthsC, int hotTenthsC) {
+        mWarmTenthsC = warmTenthsC;
+        mHotTenthsC = hotTenthsC;
+    }
+
+    /**
+     * Sets the battery levels, in percent, below which the rate is capped at
+     * {@link #LEVEL_MODERATE} and {@link #LEVEL_STOPPED} while not charging.
+     */
+    public void setBatteryThresholds(int lowPercent, int criticalPercent) {
+        mLowBatteryPercent = lowPercent;
+        mCriticalBatteryPercent = criticalPercent;
+    }
+
+    /**
+     * Takes the rpm and speed of a new sample into account. Called from one thread at a time.
+     *
+     * @param timestampNanos {@link System#nanoTime()} at which the sample was taken, see
+     *        {@link SampleIngest}
+     */
+    public void onSample(int rpm, int speed, long timestampNanos) {
+        long elapsed = timestampNanos - mLastSampleNanos;
+        if (mLastSampleNanos != 0 && elapsed > 0) {
+            float perSecond = 1e9f / elapsed;
+            float activity = Math.max(
+                    Math.abs(rpm - mLastRpm) * perSecond / FAST_RPM_PER_SECOND,
+                    Math.abs(speed - mLastSpeed) * perSecond / FAST_SPEED_PER_SECOND);
+            mActivity += (activity - mActivity) * elapsed
+                    / (elapsed + ACTIVITY_TIME_CONSTANT_NANOS);
+        }
+        if (mLastSampleNanos == 0 || elapsed > 0) {
+            mLastSampleNanos = timestampNanos;
+            mLastRpm = rpm;
+            mLastSpeed = speed;
+        }
+
+        int level;
+        if (mActivity >= FAST_ACTIVITY) {
+            level = LEVEL_FAST;
+        } else if (mActivity >= MODERATE_ACTIVITY) {
+            level = LEVEL_MODERATE;
+        } else if (speed > 0 || mActivity >= IDLE_ACTIVITY) {
+            level = LEVEL_CRUISE;
+        } else {
+            level = LEVEL_STOPPED;
+        }
+
+        if (level <= mDynamicLevel) {
+            mDynamicLevel = level;
+            mCalmerSinceNanos = 0;
+        } else if (mCalmerSinceNanos == 0) {
+            mCalmerSinceNanos = timestampNanos;
+        } else if (timestampNanos - mCalmerSinceNanos >= STEP_DOWN_HOLD_NANOS) {
+            // One level at a time, each after its own hold.
+            mDynamicLevel++;
+            mCalmerSinceNanos = timestampNanos;
+        }
+    }
+
+    /**
+     * Takes a new battery state into account. Called from one thread at a time.
+     *
+     * @param temperatureTenthsC battery temperature in tenths of a degree Celsius
+     * @param percent battery level in percent
+     * @param charging true if the device is plugged in
+     */
+    public void setBatteryState(int temperatureTenthsC, int percent, boolean charging) {
+        mTemperatureTenthsC = temperatureTenthsC;
+        mBatteryPercent = percent;
+
+        // Hold a thermal cap until the battery has cooled a little below its threshold.
+        int cool = mThermalLevel == LEVEL_FAST ? 0 : THERMAL_HYSTERESIS_TENTHS;
+        if (temperatureTenthsC >= mHotTenthsC - (mThermalLevel == LEVEL_STOPPED ? cool : 0)) {
+            mThermalLevel = LEVEL_STOPPED;
+        } else if (temperatureTenthsC >= mWarmTenthsC - cool) {
+            mThermalLevel = LEVEL_CRUISE;
+        } else {
+            mThermalLevel = LEVEL_FAST;
+        }
+
+        int batteryLevel = LEVEL_FAST;
+        if (!charging && percent >= 0) {
+            if (percent <= mCriticalBatteryPercent) {
+                batteryLevel = LEVEL_STOPPED;
+            } else if (percent <= mLowBatteryPercent) {
+                batteryLevel = LEVEL_MODERATE;
+            }
+        }
+
+        int capLevel = Math.max(mThermalLevel, batteryLevel);
+        if (capLevel != mCapLevel) {
+            Log.v(TAG, String.format(Locale.US, "battery %.1f C %d%%%s, capping at %d fps",
+                    temperatureTenthsC / 10f, percent, charging ? " charging" : "",
+                    LEVEL_FPS[capLevel]));
+        }
+        mCapReason = capLevel == LEVEL_FAST ? REASON_DYNAMICS
+                : mThermalLevel >= batteryLevel ? REASON_THERMAL : REASON_BATTERY;
+        mCapLevel = capLevel;
+    }
+
+    /**
+     * Decides the rate for the next frame and accounts the time spent at the previous one.
+     * Called by the render thread before each frame.
+     *
+     * @return the duration of one frame, in nanoseconds
+     */
+    public long update(long nowNanos) {
+        int dynamicLevel = mDynamicLevel;
+        int capLevel = mCapLevel;
+        int level = Math.max(dynamicLevel, capLevel);
+        int reason = capLevel > dynamicLevel ? mCapReason : REASON_DYNAMICS;
+
+        if (mLevelSinceNanos != 0) {
+            long elapsed = nowNanos - mLevelSinceNanos;
+            mLevelNanos[mLevel] += elapsed;
+            mReasonNanos[mReason] += elapsed;
+        }
+        mLevelSinceNanos = nowNanos;
+        if (level != mLevel) {
+            mChangeCount++;
+        }
+        mLevel = level;
+        mReason = reason;
+        return 1000000000L / LEVEL_FPS[level];
+    }
+
+    /**
+     * Stops accounting time until the next {@link #update}, e.g. while the card isn't shown.
+     * Called by the render thread.
+     */
+    public void pause() {
+        update(System.nanoTime());
+        mLevelSinceNanos = 0;
+    }
+
+    /**
+     * Returns the rate currently applied, in frames per second.
+     */
+    public int getFps() {
+        return LEVEL_FPS[mLevel];
+    }
+
+    /**
+     * Returns why the current rate was picked: {@link #REASON_DYNAMICS},
+     * {@link #REASON_THERMAL} or {@link #REASON_BATTERY}.
+     */
+    public int getReason() {
+        return mReason;
+    }
+
+    /**
+     * Returns the average rate applied, weighted by how long each was in effect.
+     */
+    public float getAverageFps() {
+        long total = 0;
+        double frames = 0;
+        for (int level = 0; level < LEVEL_FPS.length; level++) {
+            total += mLevelNanos[level];
+            frames += (double) mLevelNanos[level] * LEVEL_FPS[level];
+        }
+        return total == 0 ? LEVEL_FPS[mLevel] : (float) (frames / total);
+    }
+
+    /**
+     * Returns a summary of the rates applied. Safe to call from any thread.
+     */
+    public String getStats() {
+        long total = 0;
+        for (long nanos : mLevelNanos) {
+            total += nanos;
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "frame rate %d fps (%s), average %.1f fps, %d changes\n",
+                getFps(), REASON_NAMES[mReason], getAverageFps(), mChangeCount));
+        for (int level = 0; level < LEVEL_FPS.length; level++) {
+            sb.append(String.format(Locale.US, "%d fps %.0f%%  ", LEVEL_FPS[level],
+                    total == 0 ? 0 : 100.0 * mLevelNanos[level] / total));
+        }
+        sb.append(String.format(Locale.US, "\ncapped thermal %.1f s, battery %.1f s",
+                mReasonNanos[REASON_THERMAL] / 1e9, mReasonNanos[REASON_BATTERY] / 1e9));
+        if (mBatteryPercent >= 0) {
+            sb.append(String.format(Locale.US, ", battery %.1f C %d%%",
+                    mTemperatureTenthsC / 10f, mBatteryPercent));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.glassista.android.glass.ObdHud;
+
+import java.util.Locale;
+
+/**
+ * Infers the engaged gear from the ratio of engine speed to road speed, so the HUD no longer
+ * depends on the phone computing it.
+ * <p>
+ * A {@link Profile} gives each gear's overall ratio in rpm per mph. It is compiled into a
+ * lookup table indexed by the current gear and the ratio quantized to
+ * 1/{@link #RATIO_RESOLUTION} rpm per mph, so {@link #update} is a division and an array read.
+ * The table has the hysteresis built in: a gear is entered only when the ratio is within
+ * {@link #ENTER_TOLERANCE} of it, and kept until the ratio strays beyond
+ * {@link #KEEP_TOLERANCE}. A ratio that matches no gear, such as the engine idling or revving
+ * with the clutch in, reads as neutral (0), as does standing still.
+ */
+public class GearEstimator {
+
+    /**
+     * Quantization steps per rpm/mph.
+     */
+    public static final int RATIO_RESOLUTION = 4;
+
+    /**
+     * Highest ratio, in rpm per mph, the table covers; anything above reads as neutral.
+     */
+    private static final int MAX_RATIO = 256;
+
+    private static final int TABLE_SIZE = MAX_RATIO * RATIO_RESOLUTION;
+
+    /**
+     * Relative distance from a gear's ratio within which the gear is engaged.
+     */
+    private static final double ENTER_TOLERANCE = 0.04;
+
+    /**
+     * Relative distance from the current gear's ratio within which it is kept. Wide enough
+     * for the rounding of the integer speed at {@link #MIN_SPEED_MPH}.
+     */
+    private static final double KEEP_TOLERANCE = 0.12;
+
+    /**
+     * Below this speed the ratio is too coarse to tell gears apart, so the gear is held.
+     */
+    private static final int MIN_SPEED_MPH = 8;
+
+    /**
+     * Overall gear ratios of a vehicle.
+     */
+    public static class Profile {
+        private final String mName;
+        private final double[] mRpmPerMph;
+
+        /**
+         * @param rpmPerMph engine rpm per mph in each gear, first gear first
+         */
+        public Profile(String name, double[] rpmPerMph) {
+            mName = name;
+            mRpmPerMph = rpmPerMph.clone();
+        }
+
+        /**
+         * Computes the ratios from the drivetrain specs.
+         *
+         * @param primary primary reduction
+         * @param gears transmission ratio of each gear
+         * @param finalDrive final drive ratio
+         * @param tireCircumference rolling circumference of the driven wheel, in meters
+         */
+        public static Profile fromSpecs(String name, double primary, double[] gears,
+                double finalDrive, double tireCircumference) {
+            // Wheel revolutions per minute at one mph.
+            double wheelRpm = 1609.344 / 60 / tireCircumference;
+            double[] rpmPerMph = new double[gears.length];
+            for (int i = 0; i < gears.length; i++) {
+                rpmPerMph[i] = wheelRpm * primary * gears[i] * finalDrive;
+            }
+            return new Profile(name, rpmPerMph);
+        }
+
+        /**
+         * Parses "name: r1, r2, ..." with the rpm per mph of each gear.
+         *
+         * @throws IllegalArgumentException if the profile is malformed
+         */
+        public static Profile parse(String profile) {
+            int colon = profile.indexOf(':');
+            if (colon < 0) {
+                throw new IllegalArgumentException("expected name: ratios");
+            }
+            String[] ratios = profile.substring(colon + 1).split(",");
+            double[] rpmPerMph = new double[ratios.length];
+            for (int i = 0; i < ratios.length; i++) {
+                rpmPerMph[i] = Double.parseDouble(ratios[i].trim());
+                if (rpmPerMph[i] <= 0 || rpmPerMph[i] >= MAX_RATIO) {
+                    throw new IllegalArgumentException("ratio out of range: " + ratios[i]);
+                }
+            }
+            return new Profile(profile.substring(0, colon).trim(), rpmPerMph);
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public int getGearCount() {
+            return mRpmPerMph.length;
+        }
+
+        /**
+         * Returns the engine rpm per mph in {@code gear}, counted from 1.
+         */
+        public double getRpmPerMph(int gear) {
+            return mRpmPerMph[gear - 1];
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(mName).append(':');
+            for (int i = 0; i < mRpmPerMph.length; i++) {
+                sb.append(i == 0 ? " " : ", ")
+                        .append(String.format(Locale.US, "%.1f", mRpmPerMph[i]));
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * BMW F800ST: primary 1.943, gears 2.462 to 0.960, chain 47/17, 180/55-17 rear tire.
+     */
+    public static final Profile F800ST = Profile.fromSpecs("F800ST", 1.943,
+            new double[] {2.462, 1.750, 1.381, 1.174, 1.042, 0.960}, 47.0 / 17, 1.979);
+
+    private final Profile mProfile;
+    // Next gear, indexed by current gear * TABLE_SIZE + quantized ratio.
+    private final byte[] mTable;
+    private int mGear;
+
+    public GearEstimator(Profile profile) {
+        mProfile = profile;
+        int gearCount = profile.getGearCount();
+        mTable = new byte[(gearCount + 1) * TABLE_SIZE];
+        for (int index = 0; index < TABLE_SIZE; index++) {
+            double ratio = (index + 0.5) / RATIO_RESOLUTION;
+            int entered = 0;
+            for (int gear = 1; gear <= gearCount; gear++) {
+                if (distance(ratio, profile.getRpmPerMph(gear)) <= ENTER_TOLERANCE) {
+                    entered = gear;
+                    break;
+                }
+            }
+            for (int current = 0; current <= gearCount; current++) {
+                int next = entered;
+                if (current > 0 && (entered == 0 || entered == current)
+                        && distance(ratio, profile.getRpmPerMph(current)) <= KEEP_TOLERANCE) {
+                    next = current;
+                }
+                mTable[current * TABLE_SIZE + index] = (byte) next;
+            }
+        }
+    }
+
+    private static double distance(double ratio, double gearRatio) {
+        return Math.abs(ratio - gearRatio) / gearRatio;
+    }
+
+    public Profile getProfile() {
+        return mProfile;
+    }
+
+    /**
+     * Estimates the gear from a new sample. Called from one thread at a time; allocates
+     * nothing.
+     *
+     * @return the gear, counted from 1, or 0 for neutral, clutch in or standing still
+     */
+    public int update(int rpm, int speed) {
+        if (speed <= 0) {
+            mGear = 0;
+        } else if (speed >= MIN_SPEED_MPH) {
+            int index = (int) Math.min((long) Math.max(rpm, 0) * RATIO_RESOLUTION / speed,
+                    TABLE_SIZE - 1);
+            mGear = mTable[mGear * TABLE_SIZE + index];
+        }
+        return mGear;
+    }
+
+    /**
+     * Returns the gear of the last sample.
+     */
+    public int getGear() {
+        return mGear;
+    }
+
+    public void reset() {
+        mGear = 0;
+    }
+}
@@ -0,0 +1,407 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.glassista.android.glass.ObdHud;
+
+import android.os.Debug;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * On-device micro benchmarks for the hot paths of the HUD. Started from the options menu and
+ * reported to the log, so run it with the HUD idle to keep the numbers meaningful.
+ */
+public class HudBenchmark {
+
+    private static final String TAG = HudBenchmark.class.getSimpleName();
+
+    private static final int SAMPLE_COUNT = 256;
+    private static final int WARMUP_ITERATIONS = 20000;
+    private static final int ITERATIONS = 200000;
+
+    /**
+     * Runs every benchmark and logs the results.
+     */
+    public static void runAll() {
+        Log.i(TAG, "benchmarks started");
+        benchmarkDecoder();
+        benchmarkProtocol();
+        benchmarkAlerts();
+        benchmarkGear();
+        benchmarkFilters();
+        benchmarkGraph();
+        Log.i(TAG, "benchmarks finished");
+    }
+
+    /**
+     * Compares {@link ObdSampleDecoder} against the String/split/parseInt path it replaced.
+     */
+    static void benchmarkDecoder() {
+        byte[][] samples = new byte[SAMPLE_COUNT][];
+        for (int i = 0; i < SAMPLE_COUNT; i++) {
+            samples[i] = String.format(Locale.US, "%04d\t%02d\t%d\t%d",
+                    1000 + i * 31, i % 99, i % 10, i % 7).getBytes();
+        }
+
+        ObdSampleDecoder decoder = new ObdSampleDecoder();
+        int sink = 0;
+
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            sink += decodeLegacy(samples[i % SAMPLE_COUNT]);
+            byte[] sample = samples[i % SAMPLE_COUNT];
+            decoder.decode(sample, 0, sample.length);
+            sink += decoder.getRpm();
+        }
+
+        Debug.startAllocCounting();
+
+        Debug.resetThreadAllocCount();
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            sink += decodeLegacy(samples[i % SAMPLE_COUNT]);
+        }
+        long legacyNanos = System.nanoTime() - start;
+        int legacyAllocs = Debug.getThreadAllocCount();
+
+        Debug.resetThreadAllocCount();
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            byte[] sample = samples[i % SAMPLE_COUNT];
+            decoder.decode(sample, 0, sample.length);
+            sink += decoder.getRpm() + decoder.getSpeed() + decoder.getThrottle()
+                    + decoder.getGear();
+        }
+        long decoderNanos = System.nanoTime() - start;
+        int decoderAllocs = Debug.getThreadAllocCount();
+
+        Debug.stopAllocCounting();
+
+        report("decode split/parseInt", legacyNanos, legacyAllocs);
+        report("decode ObdSampleDecoder", decoderNanos, decoderAllocs);
+        Log.v(TAG, "sink " + sink);
+    }
+
+    /**
+     * Compares the size on the wire and the decode cost of a simulated drive in the legacy
+     * text records and in {@link TelemetryProtocol#VERSION_BINARY} packets.
+     */
+    static void benchmarkProtocol() {
+        int[] channels = {
+                ChannelRegistry.CHANNEL_RPM,
+                ChannelRegistry.CHANNEL_SPEED,
+                ChannelRegistry.CHANNEL_THROTTLE,
+                ChannelRegistry.CHANNEL_GEAR,
+        };
+        TelemetryPacketEncoder encoder = new TelemetryPacketEncoder(channels);
+        ByteArrayOutputStream legacy = new ByteArrayOutputStream();
+        ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        byte[] packet = new byte[TelemetryProtocol.MAX_PACKET];
+        int[] values = new int[channels.length];
+        for (int i = 0; i < ITERATIONS; i++) {
+            // 100 Hz samples of a smooth drive.
+            int speed = 50 + (int) (40 * Math.sin(i / 500.0));
+            values[0] = 1500 + (speed % 17) * 300 + i % 5;
+            values[1] = speed;
+            values[2] = (i / 100) % 10;
+            values[3] = 1 + speed / 17;
+            byte[] record = String.format(Locale.US, "%4d\t%2d\t%d\t%d",
+                    values[0], values[1], values[2], values[3]).getBytes();
+            legacy.write(record, 0, record.length);
+            if (!encoder.addSample(i * 10000L, values) || encoder.getSampleCount() == 32) {
+                binary.write(packet, 0, encoder.finishPacket(packet, 0));
+            }
+        }
+        binary.write(packet, 0, encoder.finishPacket(packet, 0));
+
+        CountingListener listener = new CountingListener();
+        SampleFramer framer = new SampleFramer(11, 1024, listener);
+        TelemetryPacketDecoder decoder = new TelemetryPacketDecoder(listener);
+        byte[] legacyBytes = legacy.toByteArray();
+        byte[] binaryBytes = binary.toByteArray();
+        try {
+            // The first pass warms up both paths.
+            long legacyNanos = 0;
+            long binaryNanos = 0;
+            int legacyAllocs = 0;
+            int binaryAllocs = 0;
+            for (int pass = 0; pass < 2; pass++) {
+                Debug.startAllocCounting();
+
+                Debug.resetThreadAllocCount();
+                long start = System.nanoTime();
+                ByteArrayInputStream in = new ByteArrayInputStream(legacyBytes);
+                while (framer.read(in) >= 0) {
+                }
+                legacyNanos = System.nanoTime() - start;
+                legacyAllocs = Debug.getThreadAllocCount();
+
+                Debug.resetThreadAllocCount();
+                start = System.nanoTime();
+                in = new ByteArrayInputStream(binaryBytes);
+                while (decoder.read(in) >= 0) {
+                }
+                binaryNanos = System.nanoTime() - start;
+                binaryAllocs = Debug.getThreadAllocCount();
+
+                Debug.stopAllocCounting();
+            }
+
+            report("ingest legacy records", legacyNanos, legacyAllocs);
+            report("ingest binary packets", binaryNanos, binaryAllocs);
+        } catch (IOException e) {
+            Log.e(TAG, "protocol benchmark failed", e);
+        }
+        Log.i(TAG, String.format(Locale.US, "wire size legacy %.2f, binary %.2f bytes/sample",
+                (double) legacyBytes.length / ITERATIONS,
+                (double) binaryBytes.length / ITERATIONS));
+        Log.v(TAG, "sink " + listener.mSink);
+    }
+
+    static void benchmarkAlerts() {
+        ChannelRegistry channels = ChannelRegistry.createDefault();
+        AlertEngine engine = AlertEngine.compile(AlertEngine.DEFAULT_RULES + "\n"
+                + "overheat: coolant_temp >= 110\n"
+                + "lugging: rpm < 1500 && gear >= 4 && throttle > 50 for 300 ms", channels);
+        int[][] values = new int[channels.getChannelCount()][SAMPLE_COUNT];
+        for (int i = 0; i < SAMPLE_COUNT; i++) {
+            values[ChannelRegistry.CHANNEL_RPM][i] = 1000 + i * 31;
+            values[ChannelRegistry.CHANNEL_SPEED][i] = i % 99;
+            values[ChannelRegistry.CHANNEL_THROTTLE][i] = i % 100;
+            values[ChannelRegistry.CHANNEL_GEAR][i] = i % 7;
+            values[ChannelRegistry.CHANNEL_COOLANT_TEMP][i] = 90;
+        }
+        long sink = 0;
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            sink += engine.evaluate(values, i % SAMPLE_COUNT, i * 10000000L);
+        }
+
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            sink += engine.evaluate(values, i % SAMPLE_COUNT, i * 10000000L);
+        }
+        long nanos = System.nanoTime() - start;
+        int allocs = Debug.getThreadAllocCount();
+        Debug.stopAllocCounting();
+
+        report("alerts, " + engine.getRuleCount() + " rules", nanos, allocs);
+        Log.v(TAG, "sink " + sink);
+    }
+
+    static void benchmarkGear() {
+        GearEstimator estimator = new GearEstimator(GearEstimator.F800ST);
+        int[] rpms = new int[SAMPLE_COUNT];
+        int[] speeds = new int[SAMPLE_COUNT];
+        for (int i = 0; i < SAMPLE_COUNT; i++) {
+            // Up through the gears with a little noise, some samples with the clutch in.
+            speeds[i] = 10 + i * 90 / SAMPLE_COUNT;
+            int gear = Math.min(6, 1 + speeds[i] / 17);
+            rpms[i] = i % 16 == 0 ? 1200
+                    : (int) (speeds[i] * GearEstimator.F800ST.getRpmPerMph(gear)) + i % 9;
+        }
+        long sink = 0;
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            sink += estimator.update(rpms[i % SAMPLE_COUNT], speeds[i % SAMPLE_COUNT]);
+        }
+
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            sink += estimator.update(rpms[i % SAMPLE_COUNT], speeds[i % SAMPLE_COUNT]);
+        }
+        long nanos = System.nanoTime() - start;
+        int allocs = Debug.getThreadAllocCount();
+        Debug.stopAllocCounting();
+
+        report("gear estimate", nanos, allocs);
+        Log.v(TAG, "sink " + sink);
+    }
+
+    static void benchmarkFilters() {
+        ChannelRegistry channels = ChannelRegistry.createDefault();
+        int channelCount = channels.getChannelCount();
+        int[][] values = new int[channelCount][SAMPLE_COUNT];
+        Random random = new Random(42);
+        for (int i = 0; i < SAMPLE_COUNT; i++) {
+            // A steady cruise with sensor noise and the odd spike.
+            values[ChannelRegistry.CHANNEL_RPM][i] = 4000 + random.nextInt(41) - 20
+                    + (i % 64 == 0 ? 800 : 0);
+            values[ChannelRegistry.CHANNEL_SPEED][i] = 60 + random.nextInt(3) - 1;
+            values[ChannelRegistry.CHANNEL_THROTTLE][i] = 30 + random.nextInt(7) - 3;
+            values[ChannelRegistry.CHANNEL_GEAR][i] = 5;
+            values[ChannelRegistry.CHANNEL_COOLANT_TEMP][i] = 90 + random.nextInt(2);
+            values[ChannelRegistry.CHANNEL_BOOST][i] = 20 + random.nextInt(5) - 2;
+        }
+        SignalConditioner conditioner =
+                SignalConditioner.create(SignalConditioner.DEFAULT_FILTERS, channels);
+        int[] displayed = new int[channelCount];
+        long sink = 0;
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            conditioner.filter(values, i % SAMPLE_COUNT, displayed);
+            sink += displayed[ChannelRegistry.CHANNEL_RPM];
+        }
+
+        long changesBefore = conditioner.getChangeCount();
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            conditioner.filter(values, i % SAMPLE_COUNT, displayed);
+            sink += displayed[ChannelRegistry.CHANNEL_RPM];
+        }
+        long nanos = System.nanoTime() - start;
+        int allocs = Debug.getThreadAllocCount();
+        Debug.stopAllocCounting();
+        long changes = conditioner.getChangeCount() - changesBefore;
+
+        // Without filters every sample that differs from the previous one needs a frame.
+        long rawChanges = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            int sample = i % SAMPLE_COUNT;
+            int previous = (i + SAMPLE_COUNT - 1) % SAMPLE_COUNT;
+            for (int channel = 0; channel < channelCount; channel++) {
+                if (values[channel][sample] != values[channel][previous]) {
+                    rawChanges++;
+                    break;
+                }
+            }
+        }
+
+        report("filter " + channelCount + " channels", nanos, allocs);
+        Log.i(TAG, String.format(Locale.US,
+                "display changes raw %.1f%%, filtered %.1f%% of samples",
+                100.0 * rawChanges / ITERATIONS, 100.0 * changes / ITERATIONS));
+        Log.v(TAG, "sink " + sink);
+    }
+
+    static void benchmarkGraph() {
+        // An hour at 10 samples per second, graphed over the last ten minutes.
+        int count = 36000;
+        long interval = 100000000L;
+        long window = 600000000000L;
+        int width = 280;
+        TelemetryHistory.Range samples = new TelemetryHistory.Range(2, count);
+        for (int i = 0; i < count; i++) {
+            samples.timestamps[i] = i * interval;
+            samples.values[0][i] = 4000 + (int) (3000 * Math.sin(i / 300.0));
+            samples.values[1][i] = 50 + (int) (40 * Math.sin(i / 300.0));
+        }
+        samples.count = count;
+        MinMaxPyramid pyramid = new MinMaxPyramid(0, 1);
+        long start = System.nanoTime();
+        pyramid.add(samples);
+        long addNanos = System.nanoTime() - start;
+
+        int[] minima = new int[width];
+        int[] maxima = new int[width];
+        long end = count * interval;
+        long sink = 0;
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            sink += pyramid.query(0, end - i % 64 * interval, window, width, minima, maxima);
+        }
+
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            sink += pyramid.query(0, end - i % 64 * interval, window, width, minima, maxima);
+        }
+        long nanos = System.nanoTime() - start;
+        int allocs = Debug.getThreadAllocCount();
+        Debug.stopAllocCounting();
+
+        // What every frame would cost without the pyramid: a pass over the raw samples.
+        int windowSamples = (int) (window / interval);
+        int[] column = samples.values[0];
+        long rawStart = System.nanoTime();
+        for (int i = 0; i < ITERATIONS / 100; i++) {
+            int first = count - windowSamples - i % 64;
+            for (int x = 0; x < width; x++) {
+                int min = Integer.MAX_VALUE;
+                int max = Integer.MIN_VALUE;
+                int to = first + (x + 1) * windowSamples / width;
+                for (int j = first + x * windowSamples / width; j < to; j++) {
+                    min = Math.min(min, column[j]);
+                    max = Math.max(max, column[j]);
+                }
+                sink += max - min;
+            }
+        }
+        long rawNanos = (System.nanoTime() - rawStart) * 100;
+
+        report("graph " + width + " px from pyramid", nanos, allocs);
+        report("graph " + width + " px from samples", rawNanos, 0);
+        Log.i(TAG, String.format(Locale.US, "pyramid add %.1f ns/sample",
+                (double) addNanos / count));
+        Log.v(TAG, "sink " + sink);
+    }
+
+    /**
+     * Decodes legacy records and sums every sample, so neither path can be optimized away.
+     */
+    private static class CountingListener
+            implements SampleFramer.Listener, TelemetryPacketDecoder.Listener {
+        private final ObdSampleDecoder mDecoder = new ObdSampleDecoder();
+        long mSink;
+
+        @Override
+        public boolean onFrame(byte[] buffer, int offset, int length) {
+            if (!mDecoder.decode(buffer, offset, length)) {
+                return false;
+            }
+            mSink += mDecoder.getRpm() + mDecoder.getSpeed();
+            return true;
+        }
+
+        @Override
+        public boolean check(byte[] buffer, int offset, int length) {
+            return mDecoder.check(buffer, offset, length);
+        }
+
+        @Override
+        public void onSample(long senderTimeMicros, int[] values) {
+            mSink += values[ChannelRegistry.CHANNEL_RPM]
+                    + values[ChannelRegistry.CHANNEL_SPEED];
+        }
+
+        @Override
+        public void onBatchComplete(int count) {
+        }
+    }
+
+    /**
+     * The per-sample decode that {@code HudService.ConnectThread} used before
+     * {@link ObdSampleDecoder}.
+     */
+    private static int decodeLegacy(byte[] sample) {
+        String obdstr = new String(sample, 0, sample.length);
+        String[] vals = obdstr.split("\t");
+        return Integer.parseInt(vals[0]) + Integer.parseInt(vals[1])
+                + Integer.parseInt(vals[2]) + Integer.parseInt(vals[3]);
+    }
+
+    private static void report(String name, long nanos, int allocs) {
+        Log.i(TAG, String.format(Locale.US, "%-28s %8.1f ns/op %6.2f allocs/op", name,
+                (double) nanos / ITERATIONS, (double) allocs / ITERATIONS));
+    }
+}
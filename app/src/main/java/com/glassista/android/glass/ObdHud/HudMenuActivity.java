@@ -17,8 +17,11 @@
 package com.glassista.android.glass.ObdHud;
 
 import android.app.Activity;
+import android.content.ComponentName;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.os.Bundle;
+import android.os.IBinder;
 import android.view.Menu;
 import android.view.MenuItem;
 
@@ -28,10 +31,32 @@ import android.view.MenuItem;
 public class HudMenuActivity extends Activity {
 
     private boolean mResumed;
+    private HudService.HudBinder mHudService;
+
+    private final ServiceConnection mConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            if (service instanceof HudService.HudBinder) {
+                mHudService = (HudService.HudBinder) service;
+            }
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            mHudService = null;
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        bindService(new Intent(this, HudService.class), mConnection, 0);
+    }
+
+    @Override
+    protected void onDestroy() {
+        unbindService(mConnection);
+        super.onDestroy();
     }
 
     @Override
@@ -66,11 +91,36 @@ public class HudMenuActivity extends Activity {
             case R.id.stop:
                 stopService(new Intent(this, HudService.class));
                 return true;
+            case R.id.trip_stats:
+                showStats(mHudService == null ? null : mHudService.getTripSummary(),
+                        R.string.trip_stats);
+                return true;
+            case R.id.frame_stats:
+                showStats(mHudService == null ? null : mHudService.getFrameStats(),
+                        R.string.frame_stats);
+                return true;
+            case R.id.benchmark:
+                new Thread("HudBenchmark") {
+                    @Override
+                    public void run() {
+                        HudBenchmark.runAll();
+                    }
+                }.start();
+                return true;
             default:
                 return super.onOptionsItemSelected(item);
         }
     }
 
+    private void showStats(String stats, int titleId) {
+        if (stats == null) {
+            return;
+        }
+        startActivity(new Intent(this, StatsActivity.class)
+                .putExtra(StatsActivity.EXTRA_TEXT, stats)
+                .putExtra(StatsActivity.EXTRA_FOOTNOTE, getString(titleId)));
+    }
+
     @Override
     public void onOptionsMenuClosed(Menu menu) {
         super.onOptionsMenuClosed(menu);
@@ -18,7 +18,7 @@ package com.glassista.android.glass.ObdHud;
 
 import android.content.*;
 import android.graphics.Canvas;
-import android.os.SystemClock;
+import android.graphics.Rect;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.SurfaceHolder;
@@ -26,44 +26,133 @@ import android.view.View;
 import android.widget.FrameLayout;
 
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 import java.util.Date;
+import java.util.Locale;
 
 import com.google.android.glass.timeline.DirectRenderingCallback;
 
 
-public class HudRenderer implements DirectRenderingCallback {
+public class HudRenderer implements DirectRenderingCallback, TelemetryBus.Handler,
+        AlertEngine.Listener {
 
     private static final String TAG = HudRenderer.class.getSimpleName();
 
     /**
-     * The refresh rate, in frames per second, of the Live Card.
+     * The refresh rate, in frames per second, used while no new data arrives.
      */
-    private static final int REFRESH_RATE_FPS = 33;
+    private static final int IDLE_REFRESH_RATE_FPS = 1;
 
     /**
-     * The duration, in milliseconds, of one frame.
+     * The duration, in nanoseconds, of one idle frame.
      */
-    private static final long FRAME_TIME_MILLIS = TimeUnit.SECONDS.toMillis(1) / REFRESH_RATE_FPS;
-
-    private SurfaceHolder mHolder;
-    private RenderThread mRenderThread;
-    private int mSurfaceWidth;
-    private int mSurfaceHeight;
+    private static final long IDLE_FRAME_TIME_NANOS =
+            TimeUnit.SECONDS.toNanos(1) / IDLE_REFRESH_RATE_FPS;
+
+    private volatile SurfaceHolder mHolder;
+    private volatile RenderThread mRenderThread;
+    private volatile int mSurfaceWidth;
+    private volatile int mSurfaceHeight;
+    private volatile boolean mLayoutRequested;
     private boolean mRenderingPaused;
 
     private final FrameLayout mLayout;
     private final HudView mHudView;
 
-    private int mRpm;
-    private int mSpeed;
-    private int mThrottle;
-    private int mGear;
+    private final TelemetrySnapshot mSnapshot;
+
+    // Only touched by the render thread.
+    private final TelemetrySnapshot.Sample mFrameSample;
+
+    // Only touched by the bus processor thread.
+    private final int[] mBusValues;
+    private int mRenderedSequence = -1;
+    private final ChannelRegistry mChannels;
+    private SampleInterpolator mInterpolator;
+    // Whether the interpolated values will still move without a new sample.
+    private boolean mInterpolating;
+    private boolean mShownStale;
+    private int mDisplayedSequence = -1;
+    private final Rect mDirtyRect = new Rect();
+
+    /**
+     * Told when rendering starts and stops. Called on the main thread.
+     */
+    public interface RenderingListener {
+        void onRenderingChanged(boolean rendering);
+    }
+
+    private final FrameRateGovernor mGovernor = new FrameRateGovernor();
+    private SignalConditioner mConditioner;
 
+    /**
+     * Age, in nanoseconds, past which the values shown are flagged as stale by default.
+     */
+    public static final long DEFAULT_STALE_NANOS = 2000000000L;
+
+    // Time of the newest sample received, set by the bus processor thread.
+    private volatile long mLastSampleNanos;
+    private volatile long mStaleNanos = DEFAULT_STALE_NANOS;
+
+    // History graphs, fed from the history ring by the render thread.
+    private volatile TelemetryHistory mHistory;
+    private volatile long mGraphWindowNanos = HudView.DEFAULT_GRAPH_WINDOW_NANOS;
+    private final MinMaxPyramid mGraphHistory = new MinMaxPyramid(HudView.GRAPH_CHANNELS);
+    private TelemetryHistory.Range mGraphSamples;
+    private long mGraphSequence = -1;
+    // Pixel the graphs last ended at, in units of the pixel's duration.
+    private long mGraphStep;
+    private long mShownGraphWindowNanos;
+
+    private final FramePacer mPacer = new FramePacer();
+    private final FramePacer.VsyncSampler mVsyncSampler;
+    private RenderingListener mRenderingListener;
+    // Duration of the current frame, set by the render thread.
+    private volatile long mFrameTimeNanos = 1000000000L / FrameRateGovernor.LEVEL_FPS[0];
+
+    // Firing alert rules, set by the alert engine's thread; see AlertEngine.
+    private volatile long mAlertMask;
+    private volatile long mAlertTimestampNanos;
+    // Alert rules shown by the last frame; only touched by the render thread.
+    private long mShownAlertMask;
+
+    private volatile boolean mRedrawRequested;
+
+    // Written by the render thread only. Skipped frames are those a loop repainting at the
+    // governor's rate would have painted, but nothing changed.
+    private volatile long mRenderedFrameCount;
+    private volatile long mSkippedFrameCount;
+
+    // Frame timing, recorded by the render thread.
+    private final LatencyHistogram mLockTimes = new LatencyHistogram("lockCanvas");
+    private final LatencyHistogram mDrawTimes = new LatencyHistogram("draw");
+    private final LatencyHistogram mPostTimes = new LatencyHistogram("unlockCanvasAndPost");
+    private final LatencyHistogram mFrameTimes = new LatencyHistogram("frame");
+    // Age of samples when first shown, and of the samples that raised alerts when the alert
+    // showed. Sample times are when the sender took them where it says, see SampleIngest, so
+    // these include the link's delay.
+    private final LatencyHistogram mSampleLatencies = new LatencyHistogram("sample-age-at-display");
+    private final LatencyHistogram mAlertLatencies = new LatencyHistogram("alert-age-at-display");
+    private volatile long mOverrunCount;
+
+    // Time from the service starting to the first frame showing a sample, 0 until then.
+    private volatile long mColdStartNanos;
+    private volatile long mStartNanos;
 
     /**
-     * Creates a new instance of the {@code HudRenderer} .
+     * Creates a new instance of the {@code HudRenderer}.
+     *
+     * @param channels channels the samples passed to {@link #setTelemetry} carry
      */
-    public HudRenderer(Context context) {
+    public HudRenderer(Context context, ChannelRegistry channels) {
+        mSnapshot = new TelemetrySnapshot(channels.getChannelCount());
+        mFrameSample = new TelemetrySnapshot.Sample(channels.getChannelCount());
+        mBusValues = new int[channels.getChannelCount()];
+        mChannels = channels;
+        mConditioner = new SignalConditioner(channels.getChannelCount());
+        mInterpolator = createInterpolator(SampleInterpolator.DEFAULT_PLAYOUT_DELAY_NANOS);
+        mVsyncSampler = new FramePacer.VsyncSampler(mPacer);
+
         LayoutInflater inflater = LayoutInflater.from(context);
 
         mLayout = (FrameLayout) inflater.inflate(R.layout.hud_live_card, null);
@@ -75,7 +164,8 @@ public class HudRenderer implements DirectRenderingCallback {
     public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
         mSurfaceWidth = width;
         mSurfaceHeight = height;
-        doLayout();
+        mLayoutRequested = true;
+        requestRender();
     }
 
     @Override
@@ -96,12 +186,241 @@ public class HudRenderer implements DirectRenderingCallback {
         updateRenderingState();
     }
 
-    public synchronized void setObdData(int rpm, int speed, int throttle, int gear) {
-        mThrottle = throttle;
-        mRpm = rpm;
-        mSpeed = speed;
-        mGear = gear;
+    /**
+     * Hands a new sample to the render thread. Called from one thread at a time; never blocks.
+     *
+     * @param values value of every channel, indexed by channel id
+     * @param timestampNanos {@link System#nanoTime()} at which the sample was taken, see
+     *        {@link SampleIngest}, used to measure its age when it reaches the display
+     */
+    public void setTelemetry(int[] values, long timestampNanos) {
+        if (mSnapshot.publish(values, timestampNanos)) {
+            wakeRenderThread();
+        }
+    }
+
+    /**
+     * Runs the samples through the {@link SignalConditioner} and hands the resulting display
+     * values to the render thread if they changed. Called by the {@link TelemetryBus}
+     * processor the renderer is attached to.
+     */
+    @Override
+    public void onSamples(TelemetryHistory.Range samples) {
+        boolean changed = false;
+        for (int i = 0; i < samples.count; i++) {
+            changed |= mConditioner.filter(samples.values, i, mBusValues);
+        }
+        int last = samples.count - 1;
+        mGovernor.onSample(samples.values[ChannelRegistry.CHANNEL_RPM][last],
+                samples.values[ChannelRegistry.CHANNEL_SPEED][last], samples.timestamps[last]);
+        mLastSampleNanos = samples.timestamps[last];
+        if (changed) {
+            setTelemetry(mBusValues, samples.timestamps[last]);
+        } else if (mShownStale) {
+            wakeRenderThread();
+        }
+    }
+
+    /**
+     * Sets how far behind real time values are shown, so they can be interpolated between
+     * samples; see {@link SampleInterpolator}. Call before rendering starts.
+     */
+    public void setPlayoutDelay(long delayNanos) {
+        mInterpolator.setPlayoutDelay(delayNanos);
+    }
+
+    /**
+     * Sets the age, in nanoseconds, of the newest sample past which the HUD flags its values
+     * as stale.
+     */
+    public void setStaleAge(long staleNanos) {
+        mStaleNanos = staleNanos;
+        wakeRenderThread();
+    }
+
+    /**
+     * Sets the ring the history graphs are drawn from. Call before rendering starts.
+     */
+    public void setHistory(TelemetryHistory history) {
+        mGraphSamples = new TelemetryHistory.Range(history.getChannelCount(), 256);
+        mHistory = history;
+    }
+
+    /**
+     * Sets the time, in nanoseconds, the history graphs span.
+     */
+    public void setGraphWindow(long windowNanos) {
+        mGraphWindowNanos = windowNanos;
+        wakeRenderThread();
+    }
+
+    private long getGraphPixelNanos() {
+        return Math.max(1, mGraphWindowNanos / mHudView.getGraphWidth());
+    }
+
+    /**
+     * Returns true if the graphs show samples, so they keep scrolling. Render thread only.
+     */
+    private boolean isGraphScrolling(long nowNanos) {
+        long lastSample = mLastSampleNanos;
+        return mHistory != null && lastSample != 0
+                && nowNanos - lastSample < mGraphWindowNanos + 2 * getGraphPixelNanos();
+    }
+
+    /**
+     * Feeds the samples added to the history since the last frame to the graphs' pyramid,
+     * and redraws the graphs when they have moved on by a pixel. Only a whole pixel's samples
+     * are drawn, so the columns don't change as they scroll.
+     */
+    private void updateGraphs(long nowNanos) {
+        TelemetryHistory history = mHistory;
+        if (history == null) {
+            return;
+        }
+        if (mGraphSequence < 0) {
+            mGraphSequence = history.getOldestSequence();
+        }
+        while (history.read(mGraphSequence, mGraphSamples) > 0) {
+            mGraphHistory.add(mGraphSamples);
+            mGraphSequence = mGraphSamples.firstSequence + mGraphSamples.count;
+            if (mGraphSamples.count < mGraphSamples.timestamps.length) {
+                break;
+            }
+        }
+        long window = mGraphWindowNanos;
+        long pixelNanos = getGraphPixelNanos();
+        long step = nowNanos / pixelNanos;
+        if (step != mGraphStep || window != mShownGraphWindowNanos) {
+            mGraphStep = step;
+            mShownGraphWindowNanos = window;
+            mHudView.setHistory(mGraphHistory, step * pixelNanos, window);
+        }
+    }
+
+    private boolean isStale(long nowNanos) {
+        long lastSample = mLastSampleNanos;
+        return lastSample != 0 && nowNanos - lastSample > mStaleNanos;
+    }
+
+    /**
+     * Sets the filters applied to the displayed values. Must be called before the renderer is
+     * attached to the bus and before rendering starts.
+     */
+    public void setConditioner(SignalConditioner conditioner) {
+        mConditioner = conditioner;
+        mInterpolator = createInterpolator(mInterpolator.getPlayoutDelay());
+    }
+
+    /**
+     * Returns an interpolator for the continuous channels the conditioner has no dead band
+     * on. Values reach the renderer after the dead band, so interpolating between them would
+     * show the in-band steps the band is there to hide, and redraw them every frame.
+     */
+    private SampleInterpolator createInterpolator(long playoutDelayNanos) {
+        long mask = 0;
+        for (int channel = 0; channel < mChannels.getChannelCount(); channel++) {
+            // The gear only ever shows whole steps.
+            if (channel != ChannelRegistry.CHANNEL_GEAR && mConditioner.getDeadBand(channel) <= 1) {
+                mask |= 1L << channel;
+            }
+        }
+        SampleInterpolator interpolator =
+                new SampleInterpolator(mChannels.getChannelCount(), mask);
+        interpolator.setPlayoutDelay(playoutDelayNanos);
+        return interpolator;
+    }
+
+    /**
+     * Shows or clears the alert flash. Alerts skip the frame pacing and are drawn at once.
+     */
+    @Override
+    public void onAlertsChanged(long activeMask, long raisedMask, long timestampNanos) {
+        mAlertTimestampNanos = timestampNanos;
+        mAlertMask = activeMask;
+        wakeRenderThread();
+    }
+
+    /**
+     * Returns the governor that picks the frame rate, e.g. to feed it the battery state.
+     */
+    public FrameRateGovernor getGovernor() {
+        return mGovernor;
+    }
+
+    public void setRenderingListener(RenderingListener listener) {
+        mRenderingListener = listener;
+    }
+
+    /**
+     * Returns true while the card is shown and the render thread runs.
+     */
+    public boolean isRendering() {
+        return mRenderThread != null;
+    }
+
+    /**
+     * Requests a repaint even though the OBD data did not change.
+     */
+    public void requestRender() {
+        mRedrawRequested = true;
+        wakeRenderThread();
+    }
+
+    /**
+     * Returns a summary of the frame timing recorded since the renderer was created. Safe to
+     * call from any thread.
+     */
+    public String getFrameStats() {
+        StringBuilder sb = new StringBuilder();
+        long frames = mRenderedFrameCount;
+        long samples = mConditioner.getSampleCount();
+        sb.append(frames).append(" frames rendered for ").append(samples).append(" samples");
+        if (samples != 0) {
+            sb.append(String.format(Locale.US, " (%.2f per sample)", (double) frames / samples));
+        }
+        sb.append(", ")
+                .append(mSkippedFrameCount).append(" skipped, ")
+                .append(mOverrunCount).append(" over budget\n");
+        sb.append(mGovernor.getStats()).append('\n');
+        sb.append(mPacer.getStats()).append('\n');
+        sb.append(mConditioner.getStats()).append('\n');
+        sb.append(mInterpolator.getStats()).append('\n');
+        long coldStart = mColdStartNanos;
+        if (coldStart != 0) {
+            sb.append(String.format(Locale.US, "cold start to first frame %.1f ms\n",
+                    coldStart / 1e6));
+        }
+        sb.append(mSampleLatencies.summary()).append('\n');
+        sb.append(mAlertLatencies.summary()).append('\n');
+        sb.append(mFrameTimes.summary()).append('\n');
+        sb.append(mLockTimes.summary()).append('\n');
+        sb.append(mDrawTimes.summary()).append('\n');
+        sb.append(mPostTimes.summary());
+        return sb.toString();
+    }
+
+    /**
+     * Writes the frame timing summary to the log.
+     */
+    public void dumpFrameStats() {
+        for (String line : getFrameStats().split("\n")) {
+            Log.i(TAG, line);
+        }
+    }
+
+    /**
+     * Sets the {@link System#nanoTime()} at which the service started, from which the time to
+     * the first frame showing a sample is measured.
+     */
+    public void setStartTime(long startNanos) {
+        mStartNanos = startNanos;
+    }
 
+    private void wakeRenderThread() {
+        RenderThread renderThread = mRenderThread;
+        if (renderThread != null) {
+            LockSupport.unpark(renderThread);
+        }
     }
 
     /**
@@ -116,18 +435,24 @@ public class HudRenderer implements DirectRenderingCallback {
                 Log.v(TAG, "shouldRender = TRUE");
                 mRenderThread = new RenderThread();
                 mRenderThread.start();
+                mVsyncSampler.start();
             } else {
                 Log.v(TAG, "shouldRender = FALSE");
+                mVsyncSampler.stop();
                 mRenderThread.quit();
                 mRenderThread = null;
             }
+            if (mRenderingListener != null) {
+                mRenderingListener.onRenderingChanged(shouldRender);
+            }
         }
     }
 
     /**
-     * Requests that the views redo their layout. This must be called manually every time the
-     * tips view's text is updated because this layout doesn't exist in a GUI thread where those
-     * requests will be enqueued automatically.
+     * Requests that the views redo their layout. This must be called manually because this
+     * layout doesn't exist in a GUI thread where those requests will be enqueued automatically.
+     * The HUD's size doesn't depend on the values shown, so this is only needed when the surface
+     * changes.
      */
     private void doLayout() {
         // Measure and update the layout so that it will take up the entire surface space
@@ -143,29 +468,104 @@ public class HudRenderer implements DirectRenderingCallback {
 
     /**
      * Repaints the Live Card.
+     *
+     * @param fullRedraw true to redraw the whole card, false to redraw only the fields whose
+     *        value changed
+     * @return true if a frame was posted
      */
-    private synchronized void repaint() {
+    private boolean repaint(boolean fullRedraw) {
+        SurfaceHolder holder = mHolder;
+        if (holder == null) {
+            return false;
+        }
+
+        long frameStart = System.nanoTime();
+
+        if (mLayoutRequested) {
+            mLayoutRequested = false;
+            doLayout();
+            fullRedraw = true;
+        }
+
+        int sequence = mSnapshot.read(mFrameSample);
+        if (sequence != mRenderedSequence) {
+            mInterpolator.add(mFrameSample.values, mFrameSample.timestampNanos);
+            mRenderedSequence = sequence;
+        }
+        mInterpolating = mInterpolator.interpolate(frameStart, mLastSampleNanos,
+                mFrameSample.values);
+        // Let the view look at every interpolated channel; it skips those that didn't move.
+        mFrameSample.changedMask |= mInterpolator.getChannelMask();
+        mHudView.setTelemetry(mFrameSample);
+        mShownStale = isStale(frameStart);
+        mHudView.setStale(mShownStale);
+        updateGraphs(frameStart);
+        // Read the mask first: the timestamp is written before it, so this reads the timestamp
+        // of the change that set the mask, or of a later one.
+        long alertMask = mAlertMask;
+        long alertTimestamp = mAlertTimestampNanos;
+        boolean alertRaised = (alertMask & ~mShownAlertMask) != 0;
+        mShownAlertMask = alertMask;
+        mHudView.setAlert(alertMask != 0);
+        boolean dirty = mHudView.getDirtyRect(mDirtyRect);
+        if (!fullRedraw && !dirty) {
+            return false;
+        }
+
         Canvas canvas = null;
 
+        long lockStart = System.nanoTime();
         try {
-            canvas = mHolder.lockCanvas();
+            // The surface keeps the previous frame outside the dirty rectangle, and the canvas
+            // is clipped to it, so only the changed fields are filled.
+            canvas = fullRedraw ? holder.lockCanvas() : holder.lockCanvas(mDirtyRect);
         } catch (RuntimeException e) {
             Log.d(TAG, "lockCanvas failed", e);
         }
 
-        if (canvas != null) {
+        if (canvas == null) {
+            // The changed fields were not drawn; don't lose them.
+            mRedrawRequested = true;
+            return false;
+        }
+        long drawStart = System.nanoTime();
 
-            mHudView.setObdData(mRpm, mSpeed, mThrottle, mGear);
-            
-            doLayout();
-            mLayout.draw(canvas);
+        mLayout.draw(canvas);
+        long postStart = System.nanoTime();
 
-            try {
-                mHolder.unlockCanvasAndPost(canvas);
-            } catch (RuntimeException e) {
-                Log.d(TAG, "unlockCanvasAndPost failed", e);
+        try {
+            holder.unlockCanvasAndPost(canvas);
+        } catch (RuntimeException e) {
+            Log.d(TAG, "unlockCanvasAndPost failed", e);
+            return false;
+        }
+        long frameEnd = System.nanoTime();
+
+        mLockTimes.record(drawStart - lockStart);
+        mDrawTimes.record(postStart - drawStart);
+        mPostTimes.record(frameEnd - postStart);
+        mFrameTimes.record(frameEnd - frameStart);
+        if (frameEnd - frameStart > mFrameTimeNanos) {
+            mOverrunCount++;
+        }
+
+        if (alertRaised) {
+            mAlertLatencies.record(frameEnd - alertTimestamp);
+        }
+
+        // Only the first frame showing a sample tells how stale it was when it appeared.
+        if (mFrameSample.sequence != mDisplayedSequence) {
+            mDisplayedSequence = mFrameSample.sequence;
+            if (mFrameSample.timestampNanos != 0) {
+                mSampleLatencies.record(frameEnd - mFrameSample.timestampNanos);
+                if (mColdStartNanos == 0 && mStartNanos != 0) {
+                    mColdStartNanos = frameEnd - mStartNanos;
+                    Log.i(TAG, String.format(Locale.US, "cold start to first frame %.1f ms",
+                            mColdStartNanos / 1e6));
+                }
             }
         }
+        return true;
     }
 
     /**
@@ -195,21 +595,75 @@ public class HudRenderer implements DirectRenderingCallback {
          */
         public synchronized void quit() {
             mShouldRun = false;
+            LockSupport.unpark(this);
         }
 
         @Override
         public void run() {
             Log.v(TAG, "render thread started");
+            long lastFrameStart = 0;
+            long lastFrameEnd = 0;
+            // Whether the pending frame was waiting for its deadline.
+            boolean waited = false;
             while (shouldRun()) {
-                long frameStart = SystemClock.elapsedRealtime();
-                repaint();
-                long frameLength = SystemClock.elapsedRealtime() - frameStart;
-
-                long sleepTime = FRAME_TIME_MILLIS - frameLength;
+                long now = System.nanoTime();
+                long frameTime = mGovernor.update(now);
+                mFrameTimeNanos = frameTime;
+                mPacer.setPeriod(frameTime);
+
+                boolean urgent = mAlertMask != mShownAlertMask;
+                boolean stale = isStale(now);
+                boolean graphDue = false;
+                long graphSleepTime = Long.MAX_VALUE;
+                if (isGraphScrolling(now)) {
+                    long pixelNanos = getGraphPixelNanos();
+                    graphSleepTime = (mGraphStep + 1) * pixelNanos - now;
+                    graphDue = graphSleepTime <= 0
+                            || mGraphWindowNanos != mShownGraphWindowNanos;
+                }
+                boolean dirty = urgent || mRedrawRequested
+                        || mSnapshot.getSequence() != mRenderedSequence || mInterpolating
+                        || stale != mShownStale || graphDue;
+                long deadline = urgent ? now
+                        : dirty ? mPacer.getDeadline() : lastFrameStart + IDLE_FRAME_TIME_NANOS;
+                long sleepTime = deadline - now;
+                if (!stale && mLastSampleNanos != 0) {
+                    // Wake up to flag the values stale if no sample comes before then.
+                    sleepTime = Math.min(sleepTime, mLastSampleNanos + mStaleNanos + 1 - now);
+                }
+                if (!graphDue) {
+                    // Wake up to scroll the graphs by a pixel.
+                    sleepTime = Math.min(sleepTime, graphSleepTime);
+                }
                 if (sleepTime > 0) {
-                    SystemClock.sleep(sleepTime);
+                    // setTelemetry() and requestRender() unpark us early; samples that arrive
+                    // before the next frame is due are coalesced into that frame.
+                    waited |= dirty;
+                    LockSupport.parkNanos(sleepTime);
+                    continue;
+                }
+
+                long sinceLastFrame = now - lastFrameStart;
+                if (lastFrameStart != 0 && sinceLastFrame >= 2 * frameTime) {
+                    mSkippedFrameCount += sinceLastFrame / frameTime - 1;
+                }
+                if (dirty) {
+                    // A frame still drawing at the deadline kept a ready one waiting, too.
+                    mPacer.onFrameStart(now,
+                            !urgent && (waited || lastFrameEnd - deadline > 0));
+                }
+                waited = false;
+                lastFrameStart = now;
+                boolean fullRedraw = mRedrawRequested || !dirty;
+                mRedrawRequested = false;
+                if (repaint(fullRedraw)) {
+                    mRenderedFrameCount++;
                 }
+                lastFrameEnd = System.nanoTime();
             }
+            mGovernor.pause();
+            Log.v(TAG, "render thread stopped");
+            dumpFrameStats();
         }
     }
 }
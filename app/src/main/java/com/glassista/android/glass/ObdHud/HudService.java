@@ -21,23 +21,26 @@ import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothManager;
-import android.bluetooth.BluetoothSocket;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.media.AudioManager;
+import android.os.BatteryManager;
+import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
 import android.os.PowerManager;
 import android.util.Log;
 
+import com.google.android.glass.media.Sounds;
 import com.google.android.glass.timeline.LiveCard;
 
-import java.io.BufferedOutputStream;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
+import java.io.File;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The main application service that manages the lifetime of the live card.
@@ -48,12 +51,145 @@ public class HudService extends Service {
 
     private static final String LIVE_CARD_TAG = "Hud";
 
+    private static final int MSG_SIZE = 11; // this must match message size from Torque plugin
+
+    /**
+     * Extra that makes the service replay a recorded trip instead of connecting to Torque: the
+     * trip's name, e.g. "trip-20140501-081500", or an empty string for the latest trip.
+     * <pre>
+     * adb shell am startservice -n com.glassista.android.glass.ObdHud/.HudService \
+     *         --es replay "" --ef replay_speed 10
+     * </pre>
+     */
+    public static final String EXTRA_REPLAY = "replay";
+
+    /**
+     * Replay speed: 1 for real time, 10 or 100 for accelerated, 0 for as fast as possible.
+     */
+    public static final String EXTRA_REPLAY_SPEED = "replay_speed";
+
+    /**
+     * Extra that makes the service read Torque records from a TCP server instead of the phone,
+     * given as "host:port". With {@link SimulatedTorqueSender} on a development machine:
+     * <pre>
+     * adb reverse tcp:5555 tcp:5555
+     * adb shell am startservice -n com.glassista.android.glass.ObdHud/.HudService \
+     *         --es tcp localhost:5555
+     * </pre>
+     */
+    public static final String EXTRA_TCP = "tcp";
+
+    /**
+     * Extra that makes the service read from an in-process {@link SimulatedTorqueSender}
+     * instead of the phone: the sample rate in Hz, or 0 for as fast as possible.
+     * <pre>
+     * adb shell am startservice -n com.glassista.android.glass.ObdHud/.HudService \
+     *         --ei simulate 100 --ei protocol 2
+     * </pre>
+     */
+    public static final String EXTRA_SIMULATE = "simulate";
+
+    /**
+     * {@link TelemetryProtocol} version the simulated sender speaks; legacy by default.
+     */
+    public static final String EXTRA_PROTOCOL = "protocol";
+
+    private static final String PREFS_NAME = "hud";
+
+    /**
+     * Preference holding the address of the last Bluetooth device that delivered samples.
+     */
+    private static final String PREF_DEVICE_ADDRESS = "device_address";
+
+    /**
+     * Battery temperatures, in tenths of a degree Celsius, and levels, in percent, from which
+     * the frame rate is capped; see {@link FrameRateGovernor}.
+     */
+    private static final String PREF_WARM_TENTHS_C = "warm_tenths_c";
+    private static final String PREF_HOT_TENTHS_C = "hot_tenths_c";
+    private static final String PREF_LOW_BATTERY_PERCENT = "low_battery_percent";
+    private static final String PREF_CRITICAL_BATTERY_PERCENT = "critical_battery_percent";
+
+    /**
+     * Alert rules, one per line; see {@link AlertEngine}.
+     */
+    private static final String PREF_ALERT_RULES = "alert_rules";
+
+    /**
+     * Rpm from which the trip statistics count time over redline.
+     */
+    private static final String PREF_REDLINE_RPM = "redline_rpm";
+
+    /**
+     * Gear ratios of the vehicle, as parsed by {@link GearEstimator.Profile#parse}; the F800ST
+     * by default.
+     */
+    private static final String PREF_GEAR_PROFILE = "gear_profile";
+
+    /**
+     * Filters for the displayed values, one channel per line; see {@link SignalConditioner}.
+     */
+    private static final String PREF_FILTERS = "filters";
+
+    /**
+     * How far, in milliseconds, the HUD shows values behind real time so it can interpolate
+     * between samples, and the age past which it flags them stale.
+     */
+    private static final String PREF_PLAYOUT_DELAY_MILLIS = "playout_delay_ms";
+    private static final String PREF_STALE_MILLIS = "stale_ms";
+
+    /**
+     * Seconds of rpm and speed history the HUD's graphs show.
+     */
+    private static final String PREF_GRAPH_WINDOW_SECONDS = "graph_window_s";
+
+    /**
+     * Failed attempts after which the service gives up on keeping the screen on and, for the
+     * remembered device, looks for the Torque device again.
+     */
+    private static final int DIRECT_CONNECT_ATTEMPTS = 3;
+
     private LiveCard mLiveCard;
     private HudRenderer mRenderer;
+    private final Handler mHandler = new Handler();
+    // System.nanoTime() at which the service was created.
+    private long mStartNanos;
+    private boolean mSearchStarted;
+
+    // Held while the card is rendered and a source is delivering or about to deliver samples.
+    private PowerManager.WakeLock mWakeLock;
+    private boolean mSourceActive;
+    private boolean mBatteryReceiverRegistered;
+
+    private final HudBinder mBinder = new HudBinder();
+
+    /**
+     * Number of samples kept in {@link #mHistory}; several minutes at typical Torque rates, and
+     * how far the trip recorder may fall behind before ingest waits for it.
+     */
+    private static final int HISTORY_CAPACITY = 8192;
+
+    private final ChannelRegistry mChannels = ChannelRegistry.createDefault();
+
+    // Every decoded sample, published by the ConnectionSupervisor.
+    private final TelemetryHistory mHistory =
+            new TelemetryHistory(mChannels.getChannelCount(), HISTORY_CAPACITY);
+    private final TelemetryBus mBus = new TelemetryBus(mHistory);
+    private TelemetryBus.Processor mRenderProcessor;
+    private TripStatistics mTripStatistics;
+    private TelemetryBus.Processor mStatsProcessor;
+    private AlertEngine mAlertEngine;
+    private TelemetryBus.Processor mAlertProcessor;
+
+    private TripRecorder mRecorder;
+    private TripReplayer mReplayer;
+    private TripCompactor mCompactor;
+    private ConnectionSupervisor mSupervisor;
 
     // Bluetooth client data
     public static final int REQUEST_TO_ENABLE_BT = 100;
     private BluetoothAdapter mBluetoothAdapter;
+    private boolean mReceiverRegistered;
 
     // replace this with your own device names
     private final static String CBT_SERVER_DEVICE_NAME = "Nexus 5";
@@ -63,17 +199,53 @@ public class HudService extends Service {
     public void onCreate() {
 
         super.onCreate();
+        mStartNanos = System.nanoTime();
 
         PowerManager pm = (PowerManager) getSystemService(Context.POWER_SERVICE);
-        PowerManager.WakeLock wakeLock = pm.newWakeLock(PowerManager.SCREEN_DIM_WAKE_LOCK, TAG);
-        wakeLock.acquire(3600000);
-
-
+        mWakeLock = pm.newWakeLock(PowerManager.SCREEN_DIM_WAKE_LOCK, TAG);
+        mWakeLock.setReferenceCounted(false);
     }
 
     @Override
     public IBinder onBind(Intent intent) {
-        return null;
+        return mBinder;
+    }
+
+    /**
+     * A binder that gives other components access to the HUD's statistics.
+     */
+    public class HudBinder extends Binder {
+        /**
+         * Logs the render timing statistics and returns them, or null if the live card isn't
+         * showing.
+         */
+        public String getFrameStats() {
+            HudRenderer renderer = mRenderer;
+            if (renderer == null) {
+                return null;
+            }
+            renderer.dumpFrameStats();
+            String stats = mBus.getStats();
+            ConnectionSupervisor supervisor = mSupervisor;
+            if (supervisor != null) {
+                stats += "\n" + supervisor.getStats();
+            }
+            if (mAlertEngine != null) {
+                stats += "\n" + mAlertEngine.getStats();
+            }
+            for (String line : stats.split("\n")) {
+                Log.i(TAG, line);
+            }
+            return renderer.getFrameStats() + "\n" + stats;
+        }
+
+        /**
+         * Returns the statistics of the trip so far.
+         */
+        public String getTripSummary() {
+            TripStatistics statistics = mTripStatistics;
+            return statistics != null ? statistics.getSummary() : "No samples yet";
+        }
     }
 
     @Override
@@ -82,7 +254,38 @@ public class HudService extends Service {
             // Set up live card
 
             mLiveCard = new LiveCard(this, LIVE_CARD_TAG);
-            mRenderer = new HudRenderer(this);
+            mRenderer = new HudRenderer(this, mChannels);
+            mRenderer.setStartTime(mStartNanos);
+            mRenderer.setRenderingListener(new HudRenderer.RenderingListener() {
+                @Override
+                public void onRenderingChanged(boolean rendering) {
+                    updateWakeLock();
+                }
+            });
+            startGovernor(mRenderer.getGovernor());
+            SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
+            mRenderer.setConditioner(SignalConditioner.create(
+                    prefs.getString(PREF_FILTERS, SignalConditioner.DEFAULT_FILTERS),
+                    mChannels));
+            mRenderer.setPlayoutDelay(TimeUnit.MILLISECONDS.toNanos(
+                    prefs.getInt(PREF_PLAYOUT_DELAY_MILLIS, (int) TimeUnit.NANOSECONDS.toMillis(
+                            SampleInterpolator.DEFAULT_PLAYOUT_DELAY_NANOS))));
+            mRenderer.setStaleAge(TimeUnit.MILLISECONDS.toNanos(
+                    prefs.getInt(PREF_STALE_MILLIS, (int) TimeUnit.NANOSECONDS.toMillis(
+                            HudRenderer.DEFAULT_STALE_NANOS))));
+            mRenderer.setHistory(mHistory);
+            mRenderer.setGraphWindow(TimeUnit.SECONDS.toNanos(
+                    prefs.getInt(PREF_GRAPH_WINDOW_SECONDS, (int) TimeUnit.NANOSECONDS.toSeconds(
+                            HudView.DEFAULT_GRAPH_WINDOW_NANOS))));
+            // The filters want every sample, but if the HUD falls behind it skips ahead.
+            mRenderProcessor = mBus.startProcessor("renderer", TelemetryBus.POLICY_DROP_OLDEST,
+                    64, mRenderer);
+            startAlerts();
+            // Statistics need every sample, but take them in batches off the ingest thread.
+            mTripStatistics = new TripStatistics(
+                    prefs.getInt(PREF_REDLINE_RPM, TripStatistics.DEFAULT_REDLINE_RPM));
+            mStatsProcessor = mBus.startProcessor("trip statistics",
+                    TelemetryBus.POLICY_NEVER_DROP, 256, mTripStatistics);
 
             mLiveCard.setDirectRenderingEnabled(true);
             mLiveCard.getSurfaceHolder().addCallback(mRenderer);
@@ -96,6 +299,34 @@ public class HudService extends Service {
 
             mLiveCard.publish(LiveCard.PublishMode.REVEAL);
 
+            if (intent != null && intent.hasExtra(EXTRA_REPLAY)) {
+                startReplay(intent.getStringExtra(EXTRA_REPLAY),
+                        intent.getFloatExtra(EXTRA_REPLAY_SPEED, 1f));
+                return START_NOT_STICKY;
+            }
+
+            // Record the trip
+
+            mRecorder = new TripRecorder(mBus, getTripDirectory());
+            mRecorder.start();
+
+            // Compact earlier trips to save flash
+
+            mCompactor = new TripCompactor(getTripDirectory(), mRecorder.getTripName());
+            mCompactor.start();
+
+            // Use a stand-in for the phone if asked to
+
+            if (intent != null && intent.hasExtra(EXTRA_TCP)) {
+                startSupervisor(SocketTransport.parse(intent.getStringExtra(EXTRA_TCP)));
+                return START_NOT_STICKY;
+            }
+            if (intent != null && intent.hasExtra(EXTRA_SIMULATE)) {
+                startSupervisor(new LoopbackTransport(intent.getIntExtra(EXTRA_SIMULATE, 0),
+                        intent.getIntExtra(EXTRA_PROTOCOL, TelemetryProtocol.VERSION_LEGACY)));
+                return START_NOT_STICKY;
+            }
+
             // Set up bluetooth connection
 
             //mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
@@ -111,11 +342,7 @@ public class HudService extends Service {
                     Log.v(TAG, "Bluetooth supported but not enabled");
                 } else {
                     Log.v(TAG, "Bluetooth supported and enabled");
-                    // discover new Bluetooth devices
-                    discoverBluetoothDevices();
-
-                    // find devices that have been paired
-                    getBondedDevices();
+                    connectToTorque();
                 }
             }
 
@@ -130,10 +357,242 @@ public class HudService extends Service {
             mLiveCard.getSurfaceHolder().removeCallback(mRenderer);
             mLiveCard = null;
         }
-        unregisterReceiver(mReceiver);
+        if (mRecorder != null) {
+            mRecorder.quit();
+            mRecorder = null;
+        }
+        if (mReplayer != null) {
+            mReplayer.quit();
+            mReplayer = null;
+        }
+        if (mCompactor != null) {
+            mCompactor.quit();
+            mCompactor = null;
+        }
+        if (mSupervisor != null) {
+            mSupervisor.quit();
+            mSupervisor = null;
+        }
+        if (mRenderProcessor != null) {
+            mRenderProcessor.quit();
+            mRenderProcessor = null;
+        }
+        if (mStatsProcessor != null) {
+            mStatsProcessor.quit();
+            mStatsProcessor = null;
+        }
+        if (mAlertProcessor != null) {
+            mAlertProcessor.quit();
+            mAlertProcessor = null;
+        }
+        if (mReceiverRegistered) {
+            unregisterReceiver(mReceiver);
+        }
+        if (mBatteryReceiverRegistered) {
+            unregisterReceiver(mBatteryReceiver);
+        }
+        mHandler.removeCallbacksAndMessages(null);
+        mSourceActive = false;
+        updateWakeLock();
         super.onDestroy();
     }
 
+    private File getTripDirectory() {
+        File filesDir = getExternalFilesDir(null);
+        if (filesDir == null) {
+            filesDir = getFilesDir();
+        }
+        return new File(filesDir, "trips");
+    }
+
+    private void startReplay(String tripName, float speed) {
+        File[] segments = TripReplayer.findTrip(getTripDirectory(),
+                tripName == null || tripName.length() == 0 ? null : tripName);
+        if (segments.length == 0) {
+            Log.w(TAG, "no recorded trip to replay");
+            return;
+        }
+        SampleIngest ingest = newIngest(TripReplayer.FRAME_SIZE);
+        mReplayer = new TripReplayer(segments, speed, ingest);
+        mReplayer.start();
+        setSourceActive(true);
+    }
+
+    /**
+     * Creates an ingest path to the bus that infers the gear with the configured profile.
+     */
+    private SampleIngest newIngest(int frameSize) {
+        GearEstimator.Profile profile = GearEstimator.F800ST;
+        String spec = getSharedPreferences(PREFS_NAME, MODE_PRIVATE)
+                .getString(PREF_GEAR_PROFILE, null);
+        if (spec != null) {
+            try {
+                profile = GearEstimator.Profile.parse(spec);
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "ignoring gear profile \"" + spec + "\": " + e.getMessage());
+            }
+        }
+        SampleIngest ingest = new SampleIngest(frameSize, mBus);
+        ingest.setGearEstimator(new GearEstimator(profile));
+        return ingest;
+    }
+
+    /**
+     * Configures the governor from the preferences and feeds it the battery state from now on.
+     */
+    private void startGovernor(FrameRateGovernor governor) {
+        SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
+        governor.setThermalThresholds(
+                prefs.getInt(PREF_WARM_TENTHS_C, FrameRateGovernor.DEFAULT_WARM_TENTHS_C),
+                prefs.getInt(PREF_HOT_TENTHS_C, FrameRateGovernor.DEFAULT_HOT_TENTHS_C));
+        governor.setBatteryThresholds(
+                prefs.getInt(PREF_LOW_BATTERY_PERCENT,
+                        FrameRateGovernor.DEFAULT_LOW_BATTERY_PERCENT),
+                prefs.getInt(PREF_CRITICAL_BATTERY_PERCENT,
+                        FrameRateGovernor.DEFAULT_CRITICAL_BATTERY_PERCENT));
+        // The battery broadcast is sticky, so this also delivers the current state.
+        registerReceiver(mBatteryReceiver, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        mBatteryReceiverRegistered = true;
+    }
+
+    /**
+     * Compiles the configured alert rules and evaluates them on every sample, flashing the HUD
+     * and playing a sound for the rules that ask for one.
+     */
+    private void startAlerts() {
+        String rules = getSharedPreferences(PREFS_NAME, MODE_PRIVATE)
+                .getString(PREF_ALERT_RULES, AlertEngine.DEFAULT_RULES);
+        mAlertEngine = AlertEngine.compile(rules, mChannels);
+        final long soundMask = mAlertEngine.getSoundMask();
+        final AudioManager audio = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
+        final HudRenderer renderer = mRenderer;
+        mAlertEngine.setListener(new AlertEngine.Listener() {
+            @Override
+            public void onAlertsChanged(long activeMask, long raisedMask, long timestampNanos) {
+                renderer.onAlertsChanged(activeMask, raisedMask, timestampNanos);
+                if ((raisedMask & soundMask) != 0) {
+                    audio.playSoundEffect(Sounds.ERROR);
+                }
+            }
+        });
+        // Small batches: an alert waits for the rest of its batch to be evaluated.
+        mAlertProcessor = mBus.startProcessor("alerts", TelemetryBus.POLICY_NEVER_DROP, 16,
+                mAlertEngine);
+    }
+
+    private final BroadcastReceiver mBatteryReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            HudRenderer renderer = mRenderer;
+            if (renderer == null) {
+                return;
+            }
+            int level = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+            int scale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, 100);
+            renderer.getGovernor().setBatteryState(
+                    intent.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, 0),
+                    level < 0 || scale <= 0 ? -1 : level * 100 / scale,
+                    intent.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0);
+        }
+    };
+
+    private void setSourceActive(boolean active) {
+        mSourceActive = active;
+        updateWakeLock();
+    }
+
+    /**
+     * Keeps the screen on only while the card is rendered and there is something to show, so
+     * the display can time out while the link is down or the card is hidden.
+     */
+    private void updateWakeLock() {
+        boolean hold = mSourceActive && mRenderer != null && mRenderer.isRendering();
+        if (hold != mWakeLock.isHeld()) {
+            Log.v(TAG, hold ? "acquiring wake lock" : "releasing wake lock");
+            if (hold) {
+                mWakeLock.acquire();
+            } else {
+                mWakeLock.release();
+            }
+        }
+    }
+
+    /**
+     * Connects straight to the device that last delivered samples, if there is one, and
+     * otherwise looks for the Torque device.
+     */
+    private void connectToTorque() {
+        String address = getSharedPreferences(PREFS_NAME, MODE_PRIVATE)
+                .getString(PREF_DEVICE_ADDRESS, null);
+        if (address != null && BluetoothAdapter.checkBluetoothAddress(address)) {
+            Log.v(TAG, "connecting directly to " + address);
+            startSupervisor(new BluetoothTransport(mBluetoothAdapter,
+                    mBluetoothAdapter.getRemoteDevice(address), MY_UUID));
+        } else {
+            findTorqueDevice();
+        }
+    }
+
+    /**
+     * Looks for the Torque device among the paired devices, and only scans for it if that
+     * doesn't find a device other than the one already tried.
+     */
+    private void findTorqueDevice() {
+        if (mSearchStarted) {
+            return;
+        }
+        mSearchStarted = true;
+        if (!getBondedDevices()) {
+            discoverBluetoothDevices();
+        }
+    }
+
+    private final ConnectionSupervisor.Listener mLinkListener =
+            new ConnectionSupervisor.Listener() {
+        @Override
+        public void onLinkUp(final ConnectionSupervisor supervisor) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (supervisor == mSupervisor) {
+                        setSourceActive(true);
+                    }
+                }
+            });
+            Transport transport = supervisor.getTransport();
+            if (!(transport instanceof BluetoothTransport)) {
+                return;
+            }
+            String address = ((BluetoothTransport) transport).getDevice().getAddress();
+            SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
+            if (!address.equals(prefs.getString(PREF_DEVICE_ADDRESS, null))) {
+                Log.v(TAG, "remembering " + address);
+                prefs.edit().putString(PREF_DEVICE_ADDRESS, address).apply();
+            }
+        }
+
+        @Override
+        public void onConnectFailed(final ConnectionSupervisor supervisor, int failedAttempts) {
+            if (failedAttempts != DIRECT_CONNECT_ATTEMPTS) {
+                return;
+            }
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (supervisor != mSupervisor) {
+                        return;
+                    }
+                    setSourceActive(false);
+                    if (supervisor.getTransport() instanceof BluetoothTransport
+                            && mBluetoothAdapter != null) {
+                        Log.v(TAG, "remembered device unreachable, searching");
+                        findTorqueDevice();
+                    }
+                }
+            });
+        }
+    };
+
     // for each device discovered, the broadcast info is received
     private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
         public void onReceive(Context context, Intent intent) {
@@ -148,7 +607,8 @@ public class HudService extends Service {
                 // found another Android device of mine and start communication
                 if (name != null && name.equalsIgnoreCase(CBT_SERVER_DEVICE_NAME)) {
 
-                    new ConnectThread(device).start();
+                    startSupervisor(
+                            new BluetoothTransport(mBluetoothAdapter, device, MY_UUID));
                 }
             }
         }
@@ -169,12 +629,14 @@ public class HudService extends Service {
         // to receive info about each device discovered.
         IntentFilter filter = new IntentFilter(BluetoothDevice.ACTION_FOUND);
         registerReceiver(mReceiver, filter);
+        mReceiverRegistered = true;
         mBluetoothAdapter.startDiscovery();
     }
 
 
     // bonded devices are those that have already paired with the current device sometime in the past (and have not been unpaired)
-    void getBondedDevices() {
+    // returns true if a connection to a new device was started
+    boolean getBondedDevices() {
         Set<BluetoothDevice> pairedDevices = mBluetoothAdapter.getBondedDevices();
         if (pairedDevices.size() > 0) {
             for (BluetoothDevice device : pairedDevices) {
@@ -182,84 +644,47 @@ public class HudService extends Service {
                 if (device.getName().equalsIgnoreCase(CBT_SERVER_DEVICE_NAME)) {
                     Log.d(TAG, CBT_SERVER_DEVICE_NAME);
 
-                    new ConnectThread(device).start();
-                    break;
+                    return startSupervisor(
+                            new BluetoothTransport(mBluetoothAdapter, device, MY_UUID));
                 }
             }
         } else {
             Log.v(TAG, "No bonded devices");
         }
+        return false;
     }
 
-    private class ConnectThread extends Thread {
-        int bufferSize = 1024;
-        byte[] buffer = new byte[bufferSize];
-        int bytesRead;
-        int total;
-        private final BluetoothSocket mmSocket;
-
-        public ConnectThread(BluetoothDevice device) {
-            BluetoothSocket tmp = null;
-            // Get a BluetoothSocket to connect with the given BluetoothDevice
-            try {
-                // MY_UUID is the app's UUID string, also used by the server code
-                Log.v(TAG, "before createRfcommSocketToServiceRecord");
-                tmp = device.createRfcommSocketToServiceRecord(MY_UUID);
-                Log.v(TAG, "after createRfcommSocketToServiceRecord");
-            } catch (IOException e) {
-                Log.v(TAG, " createRfcommSocketToServiceRecord exception: " + e.getMessage());
+    /**
+     * Starts supervising a connection to {@code transport}, unless the current supervisor is
+     * already connected or is trying the same source. Called on the main thread only.
+     *
+     * @return true if a new supervisor was started
+     */
+    private boolean startSupervisor(Transport transport) {
+        ConnectionSupervisor current = mSupervisor;
+        if (current != null) {
+            if (isSameSource(current.getTransport(), transport)) {
+                Log.v(TAG, "already connecting to " + transport.getName());
+                return false;
             }
-            mmSocket = tmp;
-        }
-
-        public void run() {
-            // Cancel discovery because it will slow down the connection
-            mBluetoothAdapter.cancelDiscovery();
-            try {
-                // Connect the device through the socket. This will block
-                // until it succeeds or throws an exception
-                mmSocket.connect();
-            } catch (IOException e) {
-                Log.v(TAG, e.getMessage());
-                try {
-                    mmSocket.close();
-                } catch (IOException closeException) {
-                }
-                return;
+            if (current.getConnectionState() == ConnectionSupervisor.STATE_CONNECTED) {
+                Log.v(TAG, "already connected, ignoring " + transport.getName());
+                return false;
             }
-            manageConnectedSocket(mmSocket);
+            current.quit();
         }
+        mSupervisor = new ConnectionSupervisor(transport, newIngest(MSG_SIZE));
+        mSupervisor.setListener(mLinkListener);
+        mSupervisor.start();
+        setSourceActive(true);
+        return true;
+    }
 
-        private void manageConnectedSocket(BluetoothSocket socket) {
-            FileOutputStream fos = null;
-            BufferedOutputStream bos = null;
-
-            try {
-                InputStream instream = socket.getInputStream();
-                final int msgSize = 11; // this must match message size from Torque plugin
-
-                bytesRead = -1;
-                total = 0;
-                while ((bytesRead = instream.read(buffer, 0, msgSize)) > 0) {
-                    total += bytesRead;
-
-                    String obdstr = new String(buffer, 0, bytesRead);
-                    String[] vals = obdstr.split("\t");
-
-                    mRenderer.setObdData(Integer.parseInt(vals[0]),
-                            Integer.parseInt(vals[1]),
-                            Integer.parseInt(vals[2]),
-                            Integer.parseInt(vals[3]));
-
-                }
-                socket.close();
-            } catch (IOException e) {
-                try {
-                    socket.close();
-                } catch (IOException e2) {
-                    Log.e(TAG, "socket close exception:", e2);
-                }
-            }
+    private static boolean isSameSource(Transport a, Transport b) {
+        if (a instanceof BluetoothTransport && b instanceof BluetoothTransport) {
+            return ((BluetoothTransport) a).getDevice().getAddress()
+                    .equals(((BluetoothTransport) b).getDevice().getAddress());
         }
+        return a.getName().equals(b.getName());
     }
 }
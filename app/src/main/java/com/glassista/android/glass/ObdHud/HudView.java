@@ -20,6 +20,7 @@ import android.content.Context;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
+import android.graphics.Rect;
 import android.util.AttributeSet;
 import android.view.View;
 
@@ -33,10 +34,33 @@ public class HudView extends View {
     private Paint mPaint = new Paint();
     private Paint lPaint = new Paint();
 
-    private Integer mSpeed = 0;
-    private Integer mRpm = 0;
-    private Integer mGear = 0;
-    private Integer mThrottle;
+    private final Field[] mFields;
+
+    /**
+     * Channels of the history graphs, in the order of the {@link MinMaxPyramid} passed to
+     * {@link #setHistory}.
+     */
+    public static final int[] GRAPH_CHANNELS = {
+            ChannelRegistry.CHANNEL_RPM, ChannelRegistry.CHANNEL_SPEED
+    };
+
+    /**
+     * Time, in nanoseconds, the history graphs span by default.
+     */
+    public static final long DEFAULT_GRAPH_WINDOW_NANOS = 60000000000L;
+
+    private static final int GRAPH_MAX_RPM = 9000;
+    private static final int GRAPH_MAX_SPEED = 120;
+
+    private final Paint mAlertPaint = new Paint();
+    private boolean mAlert;
+    private boolean mStale;
+
+    private final Paint mGraphPaint = new Paint();
+    private final Graph[] mGraphs;
+
+    // Area that changed since the last call to getDirtyRect(), in view coordinates.
+    private final Rect mDirty = new Rect();
 
     public HudView(Context context) {
         this(context, null, 0);
@@ -59,51 +83,247 @@ public class HudView extends View {
         lPaint.setColor(Color.WHITE);
         lPaint.setStrokeWidth(1);
 
+        mAlertPaint.setColor(Color.RED);
+
+        mGraphPaint.setColor(Color.WHITE);
+        mGraphPaint.setStrokeWidth(1);
+
+        Field gear = new Field(ChannelRegistry.CHANNEL_GEAR, 490, 340, mPaint);
+        gear.mZeroAsDash = true;
+        mFields = new Field[] {
+                new Field(ChannelRegistry.CHANNEL_RPM, 30, 120, lPaint),
+                new Field(ChannelRegistry.CHANNEL_THROTTLE, 500, 120, lPaint),
+                new Field(ChannelRegistry.CHANNEL_SPEED, 20, 340, mPaint),
+                gear,
+        };
+
+        // In the strip between the rows of numbers.
+        mGraphs = new Graph[] {
+                new Graph(0, 30, 136, 280, 36, GRAPH_MAX_RPM),
+                new Graph(1, 330, 136, 280, 36, GRAPH_MAX_SPEED),
+        };
+
+        for (Field field : mFields) {
+            field.set(0);
+        }
+        mDirty.setEmpty();
     }
 
     /**
-     * Set the OBD data.
-     *
-     * @param timestamp Timestamp of obd sample
-     * @param rpm RPM as measured by ECU
-     * @param speed Speed in MPH as measured by ECU
-     * @param gear Valid only for F800ST: computed from speed/rpm using F800ST specs.
+     * Set the OBD data. Only called from the render thread, see {@link TelemetrySnapshot}.
+     * Only the channels marked changed in the sample are looked at; fields whose value changed
+     * are added to the dirty rectangle. Speed is in MPH as measured by the ECU; gear is
+     * inferred from speed/rpm by the {@link GearEstimator}, 0 meaning neutral or clutch in.
+     */
+    public void setTelemetry(TelemetrySnapshot.Sample sample) {
+        for (Field field : mFields) {
+            if (field.mChannel < sample.values.length && sample.changed(field.mChannel)) {
+                field.set(sample.values[field.mChannel]);
+            }
+        }
+    }
+
+    /**
+     * Greys out the values while they are older than the configured age. Only called from
+     * the render thread.
+     */
+    public void setStale(boolean stale) {
+        if (stale != mStale) {
+            mStale = stale;
+            int color = stale ? Color.GRAY : Color.WHITE;
+            mPaint.setColor(color);
+            lPaint.setColor(color);
+            mGraphPaint.setColor(color);
+            mDirty.set(0, 0, getWidth(), getHeight());
+        }
+    }
+
+    /**
+     * Returns the width, in pixels, of the widest history graph.
      */
-    public synchronized void setObdData(int rpm, int speed, int throttle, int gear) {
-        mRpm = rpm;
-        mSpeed = speed;
-        mThrottle = throttle;
-        mGear = gear;
-
-        // Redraw the data.
-        invalidate();
+    public int getGraphWidth() {
+        int width = 0;
+        for (Graph graph : mGraphs) {
+            width = Math.max(width, graph.mWidth);
+        }
+        return width;
     }
 
-    public int getRpm() {
-        return mRpm;
+    /**
+     * Redraws the history graphs to show the {@code windowNanos} before {@code endNanos}. Only
+     * called from the render thread.
+     *
+     * @param history minimum and maximum of the {@link #GRAPH_CHANNELS}
+     */
+    public void setHistory(MinMaxPyramid history, long endNanos, long windowNanos) {
+        for (Graph graph : mGraphs) {
+            graph.set(history, endNanos, windowNanos);
+        }
     }
 
-    public int getSpeed() {
-        return mSpeed;
+    /**
+     * Flashes the background while an alert fires. Only called from the render thread.
+     */
+    public void setAlert(boolean alert) {
+        if (alert != mAlert) {
+            mAlert = alert;
+            mDirty.set(0, 0, getWidth(), getHeight());
+        }
     }
 
-    public int getGear() {
-        return mGear;
+    /**
+     * Copies the area that needs to be redrawn since the last call, in the coordinates of the
+     * parent, into {@code out} and resets it.
+     *
+     * @return false if nothing changed
+     */
+    public boolean getDirtyRect(Rect out) {
+        if (mDirty.isEmpty()) {
+            return false;
+        }
+        out.set(mDirty);
+        out.offset(getLeft(), getTop());
+        mDirty.setEmpty();
+        return true;
     }
 
     @Override
     public void onDraw(Canvas canvas) {
         super.onDraw(canvas);
-        int width = canvas.getWidth();
-        int height = canvas.getHeight() / 2;
 
-        //Log.v(TAG, "od [" + timestamp + "]");
-        //canvas.drawText(t , 290, 160, mPaint);
-        canvas.drawText(mRpm.toString(), 30, 120, lPaint);
-        canvas.drawText(mThrottle.toString(), 500, 120, lPaint);
-        canvas.drawText(mSpeed.toString(), 20, 340, mPaint);
-        canvas.drawText((mGear == 0) ? "-" : mGear.toString(), 490, 340, mPaint);
+        if (mAlert) {
+            canvas.drawRect(0, 0, getWidth(), getHeight(), mAlertPaint);
+        }
+        for (Field field : mFields) {
+            field.draw(canvas);
+        }
+        for (Graph graph : mGraphs) {
+            graph.draw(canvas);
+        }
+    }
+
+    /**
+     * One number on the HUD, showing one channel. The value is formatted into a reusable char
+     * buffer when it changes, so drawing allocates nothing.
+     */
+    private class Field {
+        private final char[] mChars = new char[IntFormatter.MAX_LENGTH];
+        private final Rect mBounds = new Rect();
+        private final float mX;
+        private final float mY;
+        private final Paint mFieldPaint;
+        private final int mChannel;
+        private boolean mZeroAsDash;
+        private int mValue;
+        private int mLength = -1;
+
+        Field(int channel, float x, float y, Paint paint) {
+            mChannel = channel;
+            mX = x;
+            mY = y;
+            mFieldPaint = paint;
+        }
+
+        void set(int value) {
+            if (value == mValue && mLength >= 0) {
+                return;
+            }
+            mValue = value;
+
+            // Old text has to be erased, new text drawn.
+            mDirty.union(mBounds);
+            if (mZeroAsDash && value == 0) {
+                mChars[0] = '-';
+                mLength = 1;
+            } else {
+                mLength = IntFormatter.formatInt(value, mChars);
+            }
+            float width = mFieldPaint.measureText(mChars, 0, mLength);
+            // Pad by a pixel each side for anti-aliasing.
+            mBounds.set((int) mX - 1, (int) (mY + mFieldPaint.ascent()) - 1,
+                    (int) (mX + width) + 2, (int) (mY + mFieldPaint.descent()) + 2);
+            mDirty.union(mBounds);
+        }
+
+        void draw(Canvas canvas) {
+            canvas.drawText(mChars, 0, mLength, mX, mY, mFieldPaint);
+        }
+    }
+
+    /**
+     * A sparkline of one channel's history: one vertical line per pixel from the minimum to
+     * the maximum of the samples it covers, stretched to meet its neighbours so the trace is
+     * continuous. The lines are built into a preallocated array when the graph moves, so
+     * drawing allocates nothing.
+     */
+    private class Graph {
+        private final int mIndex;
+        private final int mLeft;
+        private final int mBottom;
+        private final int mWidth;
+        private final int mHeight;
+        private final int mMaxValue;
+        private final Rect mBounds;
+        private final int[] mMinima;
+        private final int[] mMaxima;
+        // Four coordinates per line, for Canvas.drawLines().
+        private final float[] mLines;
+        private int mLineCount;
+
+        /**
+         * @param index index of the channel in {@link #GRAPH_CHANNELS}
+         * @param maxValue value drawn at the top; 0 is at the bottom
+         */
+        Graph(int index, int left, int top, int width, int height, int maxValue) {
+            mIndex = index;
+            mLeft = left;
+            mBottom = top + height;
+            mWidth = width;
+            mHeight = height;
+            mMaxValue = maxValue;
+            mBounds = new Rect(left - 1, top - 1, left + width + 1, top + height + 1);
+            mMinima = new int[width];
+            mMaxima = new int[width];
+            mLines = new float[4 * width];
+        }
+
+        void set(MinMaxPyramid history, long endNanos, long windowNanos) {
+            int filled = history.query(mIndex, endNanos, windowNanos, mWidth, mMinima, mMaxima);
+            if (filled == 0 && mLineCount == 0) {
+                return;
+            }
+            mLineCount = 0;
+            for (int x = 0; x < mWidth; x++) {
+                int min = mMinima[x];
+                int max = mMaxima[x];
+                if (min > max) {
+                    continue;
+                }
+                if (x > 0 && mMinima[x - 1] <= mMaxima[x - 1]) {
+                    min = Math.min(min, mMaxima[x - 1]);
+                    max = Math.max(max, mMinima[x - 1]);
+                }
+                float low = toY(min);
+                float high = Math.min(toY(max), low - 1);
+                int line = 4 * mLineCount++;
+                mLines[line] = mLeft + x + 0.5f;
+                mLines[line + 1] = low;
+                mLines[line + 2] = mLeft + x + 0.5f;
+                mLines[line + 3] = high;
+            }
+            mDirty.union(mBounds);
+        }
+
+        private float toY(int value) {
+            int clamped = Math.max(0, Math.min(mMaxValue, value));
+            return mBottom - (float) clamped * mHeight / mMaxValue;
+        }
 
+        void draw(Canvas canvas) {
+            if (mLineCount > 0) {
+                canvas.drawLines(mLines, 0, 4 * mLineCount, mGraphPaint);
+            }
+        }
     }
 
 }
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.glassista.android.glass.ObdHud;
+
+/**
+ * Formats ints as decimal text into caller supplied buffers, so hot paths don't create Strings.
+ */
+public final class IntFormatter {
+
+    /**
+     * Longest text an int formats to: a sign and ten digits.
+     */
+    public static final int MAX_LENGTH = 11;
+
+    private IntFormatter() {
+    }
+
+    /**
+     * Writes the decimal digits of {@code value} to the start of {@code out}.
+     *
+     * @return the number of chars written
+     */
+    public static int formatInt(int value, char[] out) {
+        if (value == Integer.MIN_VALUE) {
+            // Cannot be negated; never sent by Torque, but keep the buffer in bounds.
+            out[0] = '-';
+            return 1;
+        }
+        int length = 0;
+        if (value < 0) {
+            out[length++] = '-';
+            value = -value;
+        }
+        int start = length;
+        do {
+            out[length++] = (char) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+
+        // Digits were written least significant first.
+        for (int i = start, j = length - 1; i < j; i++, j--) {
+            char c = out[i];
+            out[i] = out[j];
+            out[j] = c;
+        }
+        return length;
+    }
+
+    /**
+     * Writes the decimal digits of {@code value} as ASCII to {@code out} at {@code offset}.
+     *
+     * @return the offset after the last digit
+     */
+    public static int formatInt(int value, byte[] out, int offset) {
+        if (value == Integer.MIN_VALUE) {
+            out[offset] = '-';
+            return offset + 1;
+        }
+        if (value < 0) {
+            out[offset++] = '-';
+            value = -value;
+        }
+        int end = offset;
+        for (int v = value; v >= 10; v /= 10) {
+            end++;
+        }
+        end++;
+        for (int i = end - 1; i >= offset; i--) {
+            out[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        return end;
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.glassista.android.glass.ObdHud;
+
+import java.util.Locale;
+
+/**
+ * Fixed size histogram of durations with microsecond resolution.
+ * <p>
+ * Buckets are log-linear: every power of two is split into 16 buckets, so percentiles are
+ * accurate to about 6% from 1 us up to several hours, and recording allocates nothing.
+ * Recording must happen on one thread; other threads may read the statistics at any time, and
+ * then see values that are at worst a few samples out of date.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /** Largest power of two, in microseconds, with its own buckets (~9.5 hours). */
+    private static final int MAX_EXPONENT = 35;
+
+    private static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final String mName;
+    private final long[] mCounts = new long[BUCKET_COUNT];
+    private long mCount;
+    private long mTotalMicros;
+    private long mMaxMicros;
+
+    public LatencyHistogram(String name) {
+        mName = name;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Records one duration.
+     */
+    public void record(long nanos) {
+        long micros = nanos / 1000;
+        if (micros < 0) {
+            micros = 0;
+        }
+        mCounts[bucketIndex(micros)]++;
+        mCount++;
+        mTotalMicros += micros;
+        if (micros > mMaxMicros) {
+            mMaxMicros = micros;
+        }
+    }
+    public long getCount() {
+        return mCount;
+    }
+
+    public long getMaxMicros() {
+        return mMaxMicros;
+    }
+
+    public long getMeanMicros() {
+        long count = mCount;
+        return count == 0 ? 0 : mTotalMicros / count;
+    }
+
+    /**
+     * Returns the value, in microseconds, below which the given fraction of the recorded
+     * durations fall.
+     *
+     * @param fraction between 0 and 1, e.g. 0.99 for the 99th percentile
+     */
+    public long getPercentileMicros(double fraction) {
+        long count = mCount;
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(fraction * count);
+        if (rank < 1) {
+            rank = 1;
+        }
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mCounts[i];
+            if (seen >= rank) {
+                return Math.min(bucketUpperBound(i), mMaxMicros);
+            }
+        }
+        return mMaxMicros;
+    }
+
+    /**
+     * Returns a one line summary in milliseconds, e.g. for the log.
+     */
+    public String summary() {
+        return String.format(Locale.US,
+                "%s n=%d mean=%.2f p50=%.2f p95=%.2f p99=%.2f max=%.2f ms",
+                mName, mCount, getMeanMicros() / 1000.0,
+                getPercentileMicros(0.50) / 1000.0, getPercentileMicros(0.95) / 1000.0,
+                getPercentileMicros(0.99) / 1000.0, mMaxMicros / 1000.0);
+    }
+
+    private static int bucketIndex(long micros) {
+        if (micros < 2 * SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+        int shift = exponent - SUB_BUCKET_BITS;
+        // The top SUB_BUCKET_BITS + 1 bits of the value, between SUB_BUCKETS and 2 * SUB_BUCKETS.
+        int top = (int) (micros >>> shift);
+        return shift * SUB_BUCKETS + top;
+    }
+
+    private static long bucketUpperBound(int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long top = SUB_BUCKETS + index % SUB_BUCKETS;
+        return ((top + 1) << shift) - 1;
+    }
+}
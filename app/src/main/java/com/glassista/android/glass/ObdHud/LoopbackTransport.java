@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.glassista.android.glass.ObdHud;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+
+/**
+ * In-process link to a {@link SimulatedTorqueSender}, for running the whole ingest path without
+ * a phone or a network.
+ */
+public class LoopbackTransport implements Transport {
+
+    private static final String TAG = LoopbackTransport.class.getSimpleName();
+
+    private static final int PIPE_SIZE = 64 * 1024;
+
+    private final int mSampleRateHz;
+    private final int mVersion;
+    private volatile SimulatedTorqueSender mSender;
+    private volatile PipedInputStream mInput;
+
+    /**
+     * @param sampleRateHz samples per second to send, or 0 for as fast as the reader takes them
+     * @param version {@link TelemetryProtocol} version to send
+     */
+    public LoopbackTransport(int sampleRateHz, int version) {
+        mSampleRateHz = sampleRateHz;
+        mVersion = version;
+    }
+
+    @Override
+    public InputStream connect() throws IOException {
+        PipedOutputStream output = new PipedOutputStream();
+        mInput = new PipedInputStream(output, PIPE_SIZE);
+        mSender = new SimulatedTorqueSender(output, mSampleRateHz, mVersion);
+        new Thread(mSender, "SimulatedTorqueSender").start();
+        return mInput;
+    }
+
+    @Override
+    public void close() {
+        SimulatedTorqueSender sender = mSender;
+        if (sender != null) {
+            sender.stop();
+        }
+        InputStream input = mInput;
+        if (input != null) {
+            try {
+                input.close();
+            } catch (IOException e) {
+                Log.e(TAG, "pipe close exception:", e);
+            }
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "loopback " + mSampleRateHz + " Hz, protocol " + mVersion;
+    }
+}
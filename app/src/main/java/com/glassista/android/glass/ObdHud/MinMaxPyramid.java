@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package com.glassista.android.glass.ObdHud;
+
+import java.util.Arrays;
+
+/**
+ * Minimum and maximum of a few channels over time, kept at several resolutions so a history
+ * graph of any length can be drawn from about one bucket per pixel.
+ * <p>
+ * Level 0 buckets span {@link #BASE_NANOS}, and every level's buckets span twice those of the
+ * level below. Each level is a ring of the latest {@link #CAPACITY} buckets, so level
+ * {@code l} reaches back {@code CAPACITY * BASE_NANOS << l}. A sample updates the bucket it
+ * falls in on every level, so adding is {@code O(levels)} and nothing is ever rescanned; a
+ * query picks the level whose buckets are just shorter than a pixel and combines at most three
+ * buckets per pixel. Neither allocates.
+ * <p>
+ * Only used from one thread.
+ */
+public class MinMaxPyramid {
+
+    /**
+     * Span, in nanoseconds, of a level 0 bucket.
+     */
+    public static final long BASE_NANOS = 100000000L;
+
+    public static final int LEVELS = 10;
+
+    /**
+     * Buckets kept per level; a query needs up to two per pixel.
+     */
+    public static final int CAPACITY = 1024;
+
+    private static final int MASK = CAPACITY - 1;
+
+    private final int[] mChannels;
+    // Number of the bucket held in each slot, by level; -1 for none.
+    private final int[][] mBuckets = new int[LEVELS][CAPACITY];
+    // Indexed by level * channels + channel index, then by slot.
+    private final int[][] mMinima;
+    private final int[][] mMaxima;
+    private long mOriginNanos;
+    private boolean mStarted;
+
+    /**
+     * @param channels channels to keep, as indexes into the values added
+     */
+    public MinMaxPyramid(int... channels) {
+        mChannels = channels.clone();
+        mMinima = new int[LEVELS * channels.length][CAPACITY];
+        mMaxima = new int[LEVELS * channels.length][CAPACITY];
+        for (int[] buckets : mBuckets) {
+            Arrays.fill(buckets, -1);
+        }
+    }
+
+    /**
+     * Adds samples from the history. Samples older than the newest bucket of a level still
+     * count if that bucket is held.
+     */
+    public void add(TelemetryHistory.Range samples) {
+        for (int i = 0; i < samples.count; i++) {
+            long timestamp = samples.timestamps[i];
+            if (!mStarted) {
+                mStarted = true;
+                mOriginNanos = timestamp;
+            }
+            long since = timestamp - mOriginNanos;
+            if (since < 0) {
+                continue;
+            }
+            int bucket = (int) (since / BASE_NANOS);
+            for (int level = 0; level < LEVELS; level++, bucket >>= 1) {
+                int slot = bucket & MASK;
+                int held = mBuckets[level][slot];
+                int row = level * mChannels.length;
+                if (held == bucket) {
+                    for (int k = 0; k < mChannels.length; k++) {
+                        int value = samples.values[mChannels[k]][i];
+                        mMinima[row + k][slot] = Math.min(mMinima[row + k][slot], value);
+                        mMaxima[row + k][slot] = Math.max(mMaxima[row + k][slot], value);
+                    }
+                } else if (held < bucket) {
+                    mBuckets[level][slot] = bucket;
+                    for (int k = 0; k < mChannels.length; k++) {
+                        int value = samples.values[mChannels[k]][i];
+                        mMinima[row + k][slot] = value;
+                        mMaxima[row + k][slot] = value;
+                    }
+                }
+                // Otherwise the sample's bucket has already been overwritten.
+            }
+        }
+    }
+
+    /**
+     * Fills one minimum and maximum per pixel for a graph of channel {@code index} ending at
+     * {@code endNanos}. A pixel without samples gets a minimum above its maximum.
+     *
+     * @param index index of the channel in the list passed to the constructor
+     * @param windowNanos time the graph spans
+     * @param width number of pixels; {@code minima} and {@code maxima} must hold as many
+     * @return the number of pixels with samples
+     */
+    public int query(int index, long endNanos, long windowNanos, int width,
+            int[] minima, int[] maxima) {
+        long pixelNanos = Math.max(1, windowNanos / width);
+        int level = 0;
+        while (level < LEVELS - 1 && BASE_NANOS << (level + 1) <= pixelNanos) {
+            level++;
+        }
+        long bucketNanos = BASE_NANOS << level;
+        int row = level * mChannels.length + index;
+        int filled = 0;
+        long start = endNanos - windowNanos - mOriginNanos;
+        for (int x = 0; x < width; x++) {
+            int min = Integer.MAX_VALUE;
+            int max = Integer.MIN_VALUE;
+            long from = start + windowNanos * x / width;
+            long to = start + windowNanos * (x + 1) / width;
+            if (mStarted && to > 0) {
+                long last = (to - 1) / bucketNanos;
+                // A ring never holds more than its capacity, even if the top level's buckets
+                // are much shorter than a pixel.
+                long first = Math.max(Math.max(0, from) / bucketNanos, last - MASK);
+                for (long bucket = first; bucket <= last; bucket++) {
+                    int slot = (int) bucket & MASK;
+                    if (mBuckets[level][slot] == bucket) {
+                        min = Math.min(min, mMinima[row][slot]);
+                        max = Math.max(max, mMaxima[row][slot]);
+                    }
+                }
+            }
+            minima[x] = min;
+            maxima[x] = max;
+            if (min <= max) {
+                filled++;
+            }
+        }
+        return filled;
+    }
+
+    /**
+     * Forgets every sample.
+     */
+    public void reset() {
+        for (int[] buckets : mBuckets) {
+            Arrays.fill(buckets, -1);
+        }
+        mStarted = false;
+    }
+}
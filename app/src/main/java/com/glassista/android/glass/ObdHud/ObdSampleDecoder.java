@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.glassista.android.glass.ObdHud;
+
+/**
+ * Decodes the tab separated ASCII samples sent by the Torque plugin
+ * ("rpm\tspeed\tthrottle\tgear") straight out of the receive buffer.
+ * <p>
+ * No Strings, arrays or boxed values are created while decoding. A malformed sample is
+ * reported by returning false from {@link #decode}; the values of the last good sample are
+ * left untouched so the caller can simply drop the bad one and carry on reading.
+ * <p>
+ * A sample is also rejected if it parses but can't have come from the vehicle: a gear outside
+ * 0 to {@link #MAX_GEAR}, a throttle outside 0 to 100%, an rpm above {@link #MAX_RPM} or a
+ * speed above {@link #MAX_SPEED} MPH. The records carry no delimiter, so this is what tells a
+ * record read a few bytes off its boundary from a real one.
+ */
+public class ObdSampleDecoder {
+
+    /** Number of fields in one Torque sample. */
+    public static final int FIELD_COUNT = 4;
+
+    public static final int FIELD_RPM = 0;
+    public static final int FIELD_SPEED = 1;
+    public static final int FIELD_THROTTLE = 2;
+    public static final int FIELD_GEAR = 3;
+
+    /** Upper bound on digits per field, so a field can never overflow an int. */
+    private static final int MAX_DIGITS = 9;
+
+    private static final byte TAB = '\t';
+
+    public static final int MAX_GEAR = 6;
+    public static final int MAX_THROTTLE = 100;
+    public static final int MAX_RPM = 10000;
+    public static final int MAX_SPEED = 160;
+
+    private final int[] mValues = new int[FIELD_COUNT];
+    private final int[] mScratch = new int[FIELD_COUNT];
+
+    private int mMalformedCount;
+
+    /**
+     * Decodes one sample.
+     *
+     * @param buffer buffer holding the sample
+     * @param offset index of the first byte of the sample
+     * @param length number of bytes in the sample
+     * @return true if the sample was well formed and its values are now available from the
+     *         getters, false if it was dropped
+     */
+    public boolean decode(byte[] buffer, int offset, int length) {
+        if (!parse(buffer, offset, length)) {
+            return malformed();
+        }
+        System.arraycopy(mScratch, 0, mValues, 0, FIELD_COUNT);
+        return true;
+    }
+
+    /**
+     * Checks whether a sample would decode, without changing the values of the last one or
+     * counting it as malformed if it wouldn't.
+     */
+    public boolean check(byte[] buffer, int offset, int length) {
+        return parse(buffer, offset, length);
+    }
+
+    /**
+     * Parses a sample into {@link #mScratch}.
+     *
+     * @return true if it is well formed and plausible
+     */
+    private boolean parse(byte[] buffer, int offset, int length) {
+        final int end = offset + length;
+        int pos = offset;
+        int field = 0;
+
+        while (field < FIELD_COUNT) {
+            // Fields may be padded with spaces to keep the record a fixed size.
+            while (pos < end && buffer[pos] == ' ') {
+                pos++;
+            }
+
+            boolean negative = false;
+            if (pos < end && buffer[pos] == '-') {
+                negative = true;
+                pos++;
+            }
+
+            int value = 0;
+            int digits = 0;
+            while (pos < end) {
+                int d = buffer[pos] - '0';
+                if (d < 0 || d > 9) {
+                    break;
+                }
+                value = value * 10 + d;
+                digits++;
+                pos++;
+            }
+            if (digits == 0 || digits > MAX_DIGITS) {
+                return false;
+            }
+
+            while (pos < end && buffer[pos] == ' ') {
+                pos++;
+            }
+
+            mScratch[field++] = negative ? -value : value;
+
+            if (field < FIELD_COUNT) {
+                if (pos >= end || buffer[pos] != TAB) {
+                    return false;
+                }
+                pos++;
+            }
+        }
+
+        // Anything after the last field must be record padding or a line terminator.
+        while (pos < end) {
+            byte b = buffer[pos++];
+            if (b != '\r' && b != '\n' && b != ' ' && b != 0) {
+                return false;
+            }
+        }
+
+        return inRange(mScratch[FIELD_RPM], MAX_RPM)
+                && inRange(mScratch[FIELD_SPEED], MAX_SPEED)
+                && inRange(mScratch[FIELD_THROTTLE], MAX_THROTTLE)
+                && inRange(mScratch[FIELD_GEAR], MAX_GEAR);
+    }
+
+    private static boolean inRange(int value, int max) {
+        return value >= 0 && value <= max;
+    }
+
+    private boolean malformed() {
+        mMalformedCount++;
+        return false;
+    }
+
+    /**
+     * Returns the value of a field of the last well formed sample.
+     *
+     * @param field one of the {@code FIELD_} constants
+     */
+    public int getValue(int field) {
+        return mValues[field];
+    }
+
+    /**
+     * Copies the values of the last well formed sample into {@code out}, indexed by the
+     * {@code FIELD_} constants.
+     */
+    public void getValues(int[] out) {
+        System.arraycopy(mValues, 0, out, 0, FIELD_COUNT);
+    }
+
+    public int getRpm() {
+        return mValues[FIELD_RPM];
+    }
+
+    public int getSpeed() {
+        return mValues[FIELD_SPEED];
+    }
+
+    public int getThrottle() {
+        return mValues[FIELD_THROTTLE];
+    }
+
+    public int getGear() {
+        return mValues[FIELD_GEAR];
+    }
+
+    /**
+     * Returns the number of samples dropped because they were malformed or implausible.
+     */
+    public int getMalformedCount() {
+        return mMalformedCount;
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.glassista.android.glass.ObdHud;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Splits the RFCOMM byte stream into fixed size sample records.
+ * <p>
+ * A read on a busy Bluetooth link can return part of a record or several records at once, so
+ * bytes are accumulated in a ring buffer and read in large chunks. After every read all complete
+ * records are handed to the {@link Listener} in one batch. When the listener rejects a record the
+ * framer assumes it has lost alignment and slides forward one byte at a time, until
+ * {@link #SYNC_FRAMES} records in a row starting at the same offset pass
+ * {@link Listener#check}. Only then are records delivered again.
+ * <p>
+ * The Torque records carry no delimiter, so it is up to the listener to reject records that
+ * are well formed but off their boundary, e.g. by their values being out of range; requiring
+ * several in a row makes an offset that happens to pass once not enough to resync on.
+ */
+public class SampleFramer {
+
+    /**
+     * Receives the records found in the stream.
+     */
+    public interface Listener {
+        /**
+         * Called for each complete record. The bytes are only valid for the duration of the
+         * call.
+         *
+         * @return true if the record was well formed, false to make the framer resync
+         */
+        boolean onFrame(byte[] buffer, int offset, int length);
+
+        /**
+         * Returns whether {@link #onFrame} would accept a record, without processing it.
+         */
+        boolean check(byte[] buffer, int offset, int length);
+
+        /**
+         * Called after the records of one read have all been passed to {@link #onFrame}.
+         *
+         * @param frameCount number of records accepted in this batch
+         */
+        void onBatchComplete(int frameCount);
+    }
+
+    private final int mFrameSize;
+    private final byte[] mRing;
+    private final int mMask;
+    private final byte[] mFrame;
+    private final Listener mListener;
+
+    /**
+     * Records in a row that must pass {@link Listener#check} to regain alignment.
+     */
+    public static final int SYNC_FRAMES = 3;
+
+    // Absolute stream positions; the ring index is position & mMask.
+    private long mReadPos;
+    private long mWritePos;
+
+    private long mReadTimeNanos;
+    private long mReadCount;
+    private long mFrameCount;
+    private long mResyncBytes;
+    private boolean mSynced = true;
+
+    /**
+     * Creates a framer.
+     *
+     * @param frameSize size of one record in bytes
+     * @param capacity ring buffer size in bytes, rounded up to a power of two
+     * @param listener receives the records
+     */
+    public SampleFramer(int frameSize, int capacity, Listener listener) {
+        if (frameSize <= 0 || capacity < frameSize * Math.max(2, SYNC_FRAMES)) {
+            throw new IllegalArgumentException(
+                    "capacity must hold at least " + SYNC_FRAMES + " frames");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        mFrameSize = frameSize;
+        mRing = new byte[size];
+        mMask = size - 1;
+        mFrame = new byte[frameSize];
+        mListener = listener;
+    }
+
+    /**
+     * Performs one read from the stream and delivers every complete record in it.
+     *
+     * @return the number of bytes read, or -1 at the end of the stream
+     */
+    public int read(InputStream in) throws IOException {
+        int used = (int) (mWritePos - mReadPos);
+        int writeIndex = (int) (mWritePos & mMask);
+        // Only read into the contiguous space up to the end of the ring; the next read wraps.
+        int length = Math.min(mRing.length - used, mRing.length - writeIndex);
+
+        int bytesRead = in.read(mRing, writeIndex, length);
+        if (bytesRead < 0) {
+            return -1;
+        }
+        mReadTimeNanos = System.nanoTime();
+        mReadCount++;
+        mWritePos += bytesRead;
+
+        int frames = 0;
+        while (mWritePos - mReadPos >= mFrameSize) {
+            if (!mSynced) {
+                if (mWritePos - mReadPos < (long) SYNC_FRAMES * mFrameSize) {
+                    // Wait for enough bytes to try this offset.
+                    break;
+                }
+                mSynced = true;
+                for (int i = 0; i < SYNC_FRAMES && mSynced; i++) {
+                    mSynced = deliver(mReadPos + i * mFrameSize, true);
+                }
+                if (!mSynced) {
+                    mReadPos++;
+                    mResyncBytes++;
+                    continue;
+                }
+            }
+
+            if (deliver(mReadPos, false)) {
+                mReadPos += mFrameSize;
+                frames++;
+            } else {
+                mSynced = false;
+                mReadPos++;
+                mResyncBytes++;
+            }
+        }
+        mFrameCount += frames;
+
+        if (frames > 0) {
+            mListener.onBatchComplete(frames);
+        }
+        return bytesRead;
+    }
+
+    /**
+     * Hands the record at stream position {@code position} to the listener.
+     *
+     * @param check true to only {@link Listener#check} it
+     * @return true if the listener accepted it
+     */
+    private boolean deliver(long position, boolean check) {
+        int readIndex = (int) (position & mMask);
+        byte[] buffer = mRing;
+        if (readIndex + mFrameSize > mRing.length) {
+            int head = mRing.length - readIndex;
+            System.arraycopy(mRing, readIndex, mFrame, 0, head);
+            System.arraycopy(mRing, 0, mFrame, head, mFrameSize - head);
+            buffer = mFrame;
+            readIndex = 0;
+        }
+        return check ? mListener.check(buffer, readIndex, mFrameSize)
+                : mListener.onFrame(buffer, readIndex, mFrameSize);
+    }
+
+    /**
+     * Discards any buffered bytes, e.g. after reconnecting. A new stream starts out aligned.
+     */
+    public void reset() {
+        mReadPos = mWritePos;
+        mSynced = true;
+    }
+
+    /**
+     * Returns the {@link System#nanoTime()} at which the last read returned. All records of a
+     * batch share this time.
+     */
+    public long getReadTimeNanos() {
+        return mReadTimeNanos;
+    }
+
+    /**
+     * Returns the number of reads performed on the stream.
+     */
+    public long getReadCount() {
+        return mReadCount;
+    }
+
+    /**
+     * Returns the number of records accepted by the listener.
+     */
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * Returns the number of bytes skipped while resyncing.
+     */
+    public long getResyncByteCount() {
+        return mResyncBytes;
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.glassista.android.glass.ObdHud;
+
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Locale;
+
+/**
+ * The ingest path from a stream of Torque records to the HUD: framing and decoding, then
+ * publishing every sample to the {@link TelemetryBus} the renderer, recorder and other
+ * consumers read from. Used for the live Bluetooth link and for trip replay alike, on the
+ * thread that reads the stream.
+ * <p>
+ * The wire format is picked per stream: one that opens with a {@link TelemetryProtocol} hello
+ * is decoded as binary packets, anything else as legacy fixed size text records. With a
+ * {@link GearEstimator}, the gear channel is inferred from rpm and speed rather than taken
+ * from the stream.
+ * <p>
+ * Samples are published with the time they were taken, on this device's clock: binary
+ * samples carry the sender's timestamp, which a {@link ClockOffsetEstimator} maps onto
+ * {@link System#nanoTime()}; legacy records carry none, so they get the time they were read.
+ */
+public class SampleIngest implements SampleFramer.Listener, TelemetryPacketDecoder.Listener {
+
+    private static final String TAG = SampleIngest.class.getSimpleName();
+
+    /**
+     * Size of the framer's ring buffer, in bytes.
+     */
+    private static final int BUFFER_SIZE = 1024;
+
+    /**
+     * Told about the first sample of every stream.
+     */
+    public interface FirstSampleListener {
+        /**
+         * Called on the reading thread when the first sample of a stream has been published.
+         *
+         * @param timestampNanos {@link System#nanoTime()} at which it was read
+         */
+        void onFirstSample(long timestampNanos);
+    }
+
+    private final ObdSampleDecoder mDecoder = new ObdSampleDecoder();
+    private final SampleFramer mFramer;
+    private final TelemetryPacketDecoder mPacketDecoder = new TelemetryPacketDecoder(this);
+    private final byte[] mHello = new byte[TelemetryProtocol.HELLO_SIZE];
+    private final TelemetryBus mBus;
+    private final int[] mSampleValues;
+    private boolean mResyncing;
+    private boolean mFirstSample;
+    private FirstSampleListener mFirstSampleListener;
+    private GearEstimator mGearEstimator;
+    private final ClockOffsetEstimator mClock = new ClockOffsetEstimator();
+
+    // Written by the reading thread, read by watchdogs.
+    private volatile long mLastReadNanos;
+
+    /**
+     * @param frameSize size of one record on a legacy stream
+     * @param bus receives every decoded sample; the channels of its ring are the ones kept
+     */
+    public SampleIngest(int frameSize, TelemetryBus bus) {
+        mFramer = new SampleFramer(frameSize, BUFFER_SIZE, this);
+        mBus = bus;
+        mSampleValues = new int[bus.getRing().getChannelCount()];
+    }
+
+    public void setFirstSampleListener(FirstSampleListener listener) {
+        mFirstSampleListener = listener;
+    }
+
+    /**
+     * Sets the estimator that fills in the gear channel, or null to keep the gear sent.
+     */
+    public void setGearEstimator(GearEstimator estimator) {
+        mGearEstimator = estimator;
+    }
+
+    /**
+     * Reads and processes records until the end of the stream. Can be called again with a new
+     * stream, e.g. after reconnecting; nothing is carried over from the previous one.
+     *
+     * @return the number of bytes read
+     */
+    public long run(InputStream in) throws IOException {
+        mFramer.reset();
+        mPacketDecoder.reset();
+        mResyncing = false;
+        mFirstSample = true;
+        mLastReadNanos = System.nanoTime();
+        if (mGearEstimator != null) {
+            mGearEstimator.reset();
+        }
+        mClock.reset();
+
+        int helloLength = readHello(in);
+        long total = helloLength;
+        int bytesRead;
+        if (helloLength == TelemetryProtocol.HELLO_SIZE) {
+            int version = mHello[TelemetryProtocol.HELLO_MAGIC.length] & 0xff;
+            if (version != TelemetryProtocol.VERSION_BINARY) {
+                throw new IOException("unsupported protocol version " + version);
+            }
+            Log.v(TAG, "binary protocol version " + version);
+            while ((bytesRead = mPacketDecoder.read(in)) >= 0) {
+                mLastReadNanos = mPacketDecoder.getReadTimeNanos();
+                total += bytesRead;
+            }
+            Log.v(TAG, "stream closed after " + mPacketDecoder.getSampleCount() + " samples in "
+                    + mPacketDecoder.getPacketCount() + " packets and "
+                    + mPacketDecoder.getReadCount() + " reads, "
+                    + mPacketDecoder.getCorruptPacketCount() + " corrupt packets, "
+                    + mPacketDecoder.getResyncByteCount() + " bytes skipped");
+            Log.v(TAG, String.format(Locale.US, "clock offset %.1f ms, %s",
+                    mClock.getOffsetNanos() / 1e6, mClock.getJitter().summary()));
+        } else {
+            Log.v(TAG, "legacy protocol");
+            // Hand the bytes read while looking for the hello to the framer first.
+            if (helloLength > 0) {
+                in = new SequenceInputStream(new ByteArrayInputStream(mHello, 0, helloLength), in);
+            }
+            while ((bytesRead = mFramer.read(in)) >= 0) {
+                mLastReadNanos = mFramer.getReadTimeNanos();
+                total += bytesRead;
+            }
+            Log.v(TAG, "stream closed after " + mFramer.getFrameCount() + " samples in "
+                    + mFramer.getReadCount() + " reads, "
+                    + mFramer.getResyncByteCount() + " bytes skipped");
+        }
+        return total;
+    }
+
+    /**
+     * Reads the stream into {@link #mHello} until it either holds a complete hello or stops
+     * matching one, so a legacy stream is recognized by its first byte.
+     *
+     * @return the number of bytes read; {@link TelemetryProtocol#HELLO_SIZE} for a hello
+     */
+    private int readHello(InputStream in) throws IOException {
+        int length = 0;
+        while (length < TelemetryProtocol.HELLO_SIZE) {
+            int b = in.read();
+            if (b < 0) {
+                break;
+            }
+            mHello[length++] = (byte) b;
+            if (length <= TelemetryProtocol.HELLO_MAGIC.length
+                    && (byte) b != TelemetryProtocol.HELLO_MAGIC[length - 1]) {
+                break;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Returns the {@link System#nanoTime()} of the latest read that returned, or of the start
+     * of the stream. May be called from any thread.
+     */
+    public long getLastReadNanos() {
+        return mLastReadNanos;
+    }
+
+    /**
+     * Returns the number of samples decoded so far.
+     */
+    public long getSampleCount() {
+        return mFramer.getFrameCount() + mPacketDecoder.getSampleCount();
+    }
+
+    @Override
+    public boolean onFrame(byte[] frame, int offset, int length) {
+        if (!mDecoder.decode(frame, offset, length)) {
+            if (!mResyncing) {
+                Log.w(TAG, "lost sync, dropped malformed sample");
+                mResyncing = true;
+            }
+            return false;
+        }
+        if (mResyncing) {
+            Log.w(TAG, "resynced, " + mFramer.getResyncByteCount() + " bytes skipped so far");
+            mResyncing = false;
+        }
+        // The legacy fields are the first channels; any others keep their last value.
+        for (int field = 0; field < ObdSampleDecoder.FIELD_COUNT; field++) {
+            mSampleValues[field] = mDecoder.getValue(field);
+        }
+        estimateGear();
+        mBus.publish(mFramer.getReadTimeNanos(), mSampleValues);
+        return true;
+    }
+
+    @Override
+    public boolean check(byte[] frame, int offset, int length) {
+        return mDecoder.check(frame, offset, length);
+    }
+
+    @Override
+    public void onSample(long senderTimeMicros, int[] values) {
+        System.arraycopy(values, 0, mSampleValues, 0, mSampleValues.length);
+        estimateGear();
+        mBus.publish(mClock.toLocalNanos(senderTimeMicros, mPacketDecoder.getReadTimeNanos()),
+                mSampleValues);
+    }
+
+    private void estimateGear() {
+        if (mGearEstimator != null) {
+            mSampleValues[ChannelRegistry.CHANNEL_GEAR] = mGearEstimator.update(
+                    mSampleValues[ChannelRegistry.CHANNEL_RPM],
+                    mSampleValues[ChannelRegistry.CHANNEL_SPEED]);
+        }
+    }
+
+    @Override
+    public void onBatchComplete(int frameCount) {
+        mBus.signal();
+        if (mFirstSample) {
+            mFirstSample = false;
+            if (mFirstSampleListener != null) {
+                mFirstSampleListener.onFirstSample(
+                        Math.max(mFramer.getReadTimeNanos(), mPacketDecoder.getReadTimeNanos()));
+            }
+        }
+    }
+}
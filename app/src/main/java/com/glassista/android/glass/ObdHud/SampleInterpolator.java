@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.glassista.android.glass.ObdHud;
+
+import java.util.Locale;
+
+/**
+ * Smooths the HUD between sparse samples: rather than jumping to each new value, the shown
+ * value moves between samples at the frame rate.
+ * <p>
+ * Frames show the values as of their display time, a playout delay earlier than the frame.
+ * The last few samples are kept as a jitter buffer, so the display time normally falls between
+ * two of them and the value is interpolated; if no sample has arrived for the display time
+ * yet, the value is dead-reckoned from the last two for up to one sample interval, then held.
+ * Only continuous channels are treated this way; others, such as the gear, show their latest
+ * value at once.
+ * <p>
+ * Only used from the render thread.
+ */
+public class SampleInterpolator {
+
+    /**
+     * Samples kept.
+     */
+    private static final int BUFFER_SIZE = 4;
+
+    /**
+     * Longest interval, in nanoseconds, between samples that is interpolated over; after a
+     * longer gap the value moves over this time only, just before the newer sample.
+     */
+    private static final long MAX_SPAN_NANOS = 500000000L;
+
+    public static final long DEFAULT_PLAYOUT_DELAY_NANOS = 100000000L;
+
+    private final int mChannelCount;
+    private final long mChannelMask;
+    private final long[] mTimestamps = new long[BUFFER_SIZE];
+    private final int[][] mValues;
+    // Index of the newest sample, and how many are held.
+    private int mNewest = -1;
+    private int mCount;
+    private long mPlayoutDelayNanos = DEFAULT_PLAYOUT_DELAY_NANOS;
+
+    private long mInterpolatedFrames;
+    private long mExtrapolatedFrames;
+
+    /**
+     * @param channelMask bit {@code c} set for every channel {@code c} to interpolate
+     */
+    public SampleInterpolator(int channelCount, long channelMask) {
+        mChannelCount = channelCount;
+        mChannelMask = channelMask;
+        mValues = new int[BUFFER_SIZE][channelCount];
+    }
+
+    /**
+     * Sets how far behind the frame time values are shown. Longer delays ride out more link
+     * jitter; 0 always dead-reckons.
+     */
+    public void setPlayoutDelay(long delayNanos) {
+        mPlayoutDelayNanos = delayNanos;
+    }
+
+    public long getPlayoutDelay() {
+        return mPlayoutDelayNanos;
+    }
+
+    /**
+     * Adds a sample, which must not be older than the previous one.
+     */
+    public void add(int[] values, long timestampNanos) {
+        if (mCount > 0 && timestampNanos - mTimestamps[mNewest] < 0) {
+            timestampNanos = mTimestamps[mNewest];
+        }
+        mNewest = (mNewest + 1) % BUFFER_SIZE;
+        mTimestamps[mNewest] = timestampNanos;
+        System.arraycopy(values, 0, mValues[mNewest], 0, Math.min(mChannelCount, values.length));
+        mCount = Math.min(mCount + 1, BUFFER_SIZE);
+    }
+
+    /**
+     * Overwrites the interpolated channels of {@code values} with their values as of the
+     * display time of a frame.
+     *
+     * @param frameNanos {@link System#nanoTime()} of the frame
+     * @param lastSampleNanos time of the newest sample received, whether or not it changed
+     *        anything; past it the values are known to hold
+     * @return true if the values will still move in later frames without a new sample
+     */
+    public boolean interpolate(long frameNanos, long lastSampleNanos, int[] values) {
+        if (mCount == 0 || mChannelMask == 0) {
+            return false;
+        }
+        long display = frameNanos - mPlayoutDelayNanos;
+        int newer = mNewest;
+        int older = -1;
+        for (int i = 1; i < mCount; i++) {
+            int index = (mNewest - i + BUFFER_SIZE) % BUFFER_SIZE;
+            if (mTimestamps[newer] - display <= 0) {
+                break;
+            }
+            older = index;
+            if (mTimestamps[index] - display <= 0) {
+                break;
+            }
+            newer = index;
+        }
+
+        if (older < 0 || mTimestamps[newer] - display <= 0) {
+            // Display time at or past the newest sample.
+            if (mCount < 2 || lastSampleNanos - display >= 0) {
+                copy(mNewest, values);
+                return false;
+            }
+            int previous = (mNewest - 1 + BUFFER_SIZE) % BUFFER_SIZE;
+            long span = mTimestamps[mNewest] - mTimestamps[previous];
+            long ahead = display - mTimestamps[mNewest];
+            if (span <= 0 || span > MAX_SPAN_NANOS || ahead >= span) {
+                copy(mNewest, values);
+                return false;
+            }
+            mExtrapolatedFrames++;
+            blend(previous, mNewest, (float) (span + ahead) / span, values);
+            return true;
+        }
+
+        if (mTimestamps[older] - display > 0) {
+            // Older than every sample held.
+            copy(older, values);
+            return true;
+        }
+        long start = Math.max(mTimestamps[older], mTimestamps[newer] - MAX_SPAN_NANOS);
+        if (display - start <= 0) {
+            copy(older, values);
+            return true;
+        }
+        mInterpolatedFrames++;
+        blend(older, newer, (float) (display - start) / (mTimestamps[newer] - start), values);
+        return true;
+    }
+
+    private void copy(int sample, int[] values) {
+        int[] from = mValues[sample];
+        for (int channel = 0; channel < mChannelCount; channel++) {
+            if ((mChannelMask & (1L << channel)) != 0) {
+                values[channel] = from[channel];
+            }
+        }
+    }
+
+    /**
+     * Sets the interpolated channels to {@code from + fraction * (to - from)}; a fraction
+     * above 1 extrapolates.
+     */
+    private void blend(int from, int to, float fraction, int[] values) {
+        int[] a = mValues[from];
+        int[] b = mValues[to];
+        for (int channel = 0; channel < mChannelCount; channel++) {
+            if ((mChannelMask & (1L << channel)) != 0) {
+                values[channel] = a[channel] + Math.round(fraction * (b[channel] - a[channel]));
+            }
+        }
+    }
+
+    public long getChannelMask() {
+        return mChannelMask;
+    }
+
+    public String getStats() {
+        return String.format(Locale.US,
+                "%d frames interpolated, %d dead-reckoned, playout delay %.0f ms",
+                mInterpolatedFrames, mExtrapolatedFrames, mPlayoutDelayNanos / 1e6);
+    }
+}
@@ -0,0 +1,332 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.glassista.android.glass.ObdHud;
+
+import android.util.Log;
+
+import java.util.Locale;
+
+/**
+ * Smooths the values shown on the HUD, so noisy channels don't make the digits flicker and
+ * every frame redraw.
+ * <p>
+ * Each channel passes through up to three stages: a median over the last few samples, which
+ * removes single-sample spikes; an exponential moving average or a one-dimensional Kalman
+ * filter; and a dead band, which only changes the displayed value once the filtered one has
+ * moved at least that far from it. So the display doesn't stick short of where the value
+ * settles, the band gives way once the filtered value has held still for
+ * {@link #SETTLE_SAMPLES} samples or reaches 0, such as speed at a stop or a closed throttle.
+ * The stages are configured one channel per line:
+ * <pre>
+ * rpm: median 3 ema 0.3 band 50
+ * throttle: kalman 4 25 band 2
+ * </pre>
+ * All state lives in primitive arrays indexed by channel, so filtering a sample allocates
+ * nothing. Only the displayed values are filtered; the bus, recorder and alerts see raw ones.
+ */
+public class SignalConditioner {
+
+    private static final String TAG = SignalConditioner.class.getSimpleName();
+
+    /**
+     * Longest median window.
+     */
+    public static final int MAX_MEDIAN_WINDOW = 7;
+
+    /**
+     * Samples the filtered value must hold still for to be shown even within the dead band.
+     */
+    public static final int SETTLE_SAMPLES = 5;
+
+    /**
+     * The filters used when none are configured.
+     */
+    public static final String DEFAULT_FILTERS =
+            "rpm: median 3 ema 0.35 band 50\n"
+            + "speed: median 3 band 2\n"
+            + "throttle: median 3 kalman 4 25 band 2\n"
+            + "coolant_temp: ema 0.1 band 2\n"
+            + "boost: ema 0.3 band 2";
+
+    private static final int SMOOTH_NONE = 0;
+    private static final int SMOOTH_EMA = 1;
+    private static final int SMOOTH_KALMAN = 2;
+
+    private final int mChannelCount;
+
+    // Configuration, by channel.
+    private final int[] mMedianWindow;
+    private final int[] mSmoothing;
+    private final float[] mEmaAlpha;
+    private final float[] mProcessNoise;
+    private final float[] mMeasurementNoise;
+    private final int[] mDeadBand;
+
+    // State, by channel; only touched by the filtering thread.
+    private final int[][] mMedianHistory;
+    private final int[] mMedianCount;
+    private final int[] mMedianNext;
+    private final int[] mMedianScratch = new int[MAX_MEDIAN_WINDOW];
+    private final float[] mEstimate;
+    private final float[] mErrorVariance;
+    private final boolean[] mPrimed;
+    private final int[] mDisplayed;
+    // Last filtered value, rounded, and for how many samples in a row it has been the same.
+    private final int[] mLastRounded;
+    private final int[] mSteadyCount;
+
+    private volatile long mSampleCount;
+    private volatile long mChangeCount;
+
+    public SignalConditioner(int channelCount) {
+        mChannelCount = channelCount;
+        mMedianWindow = new int[channelCount];
+        mSmoothing = new int[channelCount];
+        mEmaAlpha = new float[channelCount];
+        mProcessNoise = new float[channelCount];
+        mMeasurementNoise = new float[channelCount];
+        mDeadBand = new int[channelCount];
+        mMedianHistory = new int[channelCount][MAX_MEDIAN_WINDOW];
+        mMedianCount = new int[channelCount];
+        mMedianNext = new int[channelCount];
+        mEstimate = new float[channelCount];
+        mErrorVariance = new float[channelCount];
+        mPrimed = new boolean[channelCount];
+        mDisplayed = new int[channelCount];
+        mLastRounded = new int[channelCount];
+        mSteadyCount = new int[channelCount];
+        for (int channel = 0; channel < channelCount; channel++) {
+            mMedianWindow[channel] = 1;
+        }
+    }
+
+    /**
+     * Creates a conditioner configured with {@code filters}, one channel per line. Lines that
+     * don't parse are logged and ignored.
+     */
+    public static SignalConditioner create(String filters, ChannelRegistry channels) {
+        SignalConditioner conditioner = new SignalConditioner(channels.getChannelCount());
+        for (String line : filters.split("\n")) {
+            line = line.trim();
+            if (line.length() == 0 || line.startsWith("#")) {
+                continue;
+            }
+            try {
+                conditioner.configure(line, channels);
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "ignoring filter \"" + line + "\": " + e.getMessage());
+            }
+        }
+        return conditioner;
+    }
+
+    private void configure(String line, ChannelRegistry channels) {
+        int colon = line.indexOf(':');
+        if (colon < 0) {
+            throw new IllegalArgumentException("expected channel: filters");
+        }
+        int channel = channels.getId(line.substring(0, colon).trim());
+        if (channel < 0 || channel >= mChannelCount) {
+            throw new IllegalArgumentException("unknown channel");
+        }
+        String[] tokens = line.substring(colon + 1).trim().split("\\s+");
+        for (int t = 0; t < tokens.length; t++) {
+            String stage = tokens[t];
+            if (stage.equals("median") && t + 1 < tokens.length) {
+                setMedian(channel, Integer.parseInt(tokens[++t]));
+            } else if (stage.equals("ema") && t + 1 < tokens.length) {
+                setEma(channel, Float.parseFloat(tokens[++t]));
+            } else if (stage.equals("kalman") && t + 2 < tokens.length) {
+                setKalman(channel, Float.parseFloat(tokens[++t]), Float.parseFloat(tokens[++t]));
+            } else if (stage.equals("band") && t + 1 < tokens.length) {
+                setDeadBand(channel, Integer.parseInt(tokens[++t]));
+            } else {
+                throw new IllegalArgumentException("unexpected " + stage);
+            }
+        }
+    }
+
+    /**
+     * Takes the median of the last {@code window} samples, 1 for none.
+     */
+    public void setMedian(int channel, int window) {
+        if (window < 1 || window > MAX_MEDIAN_WINDOW) {
+            throw new IllegalArgumentException(
+                    "median window must be 1 to " + MAX_MEDIAN_WINDOW);
+        }
+        mMedianWindow[channel] = window;
+        mMedianCount[channel] = 0;
+        mMedianNext[channel] = 0;
+    }
+
+    /**
+     * Smooths with an exponential moving average that moves {@code alpha} of the way to each
+     * new sample.
+     */
+    public void setEma(int channel, float alpha) {
+        if (!(alpha > 0 && alpha <= 1)) {
+            throw new IllegalArgumentException("alpha must be in (0, 1]");
+        }
+        mSmoothing[channel] = SMOOTH_EMA;
+        mEmaAlpha[channel] = alpha;
+        mPrimed[channel] = false;
+    }
+
+    /**
+     * Smooths with a one-dimensional Kalman filter modelling the value as a random walk.
+     *
+     * @param processNoise variance of the change in the true value between samples
+     * @param measurementNoise variance of the noise on each sample
+     */
+    public void setKalman(int channel, float processNoise, float measurementNoise) {
+        if (!(processNoise > 0 && measurementNoise > 0)) {
+            throw new IllegalArgumentException("noise variances must be positive");
+        }
+        mSmoothing[channel] = SMOOTH_KALMAN;
+        mProcessNoise[channel] = processNoise;
+        mMeasurementNoise[channel] = measurementNoise;
+        mPrimed[channel] = false;
+    }
+
+    /**
+     * Only changes the displayed value once the filtered one is {@code band} away from it,
+     * has settled or is 0; 0 or 1 shows every change.
+     */
+    public void setDeadBand(int channel, int band) {
+        if (band < 0) {
+            throw new IllegalArgumentException("band must not be negative");
+        }
+        mDeadBand[channel] = band;
+    }
+
+    /**
+     * Returns the dead band of {@code channel}; see {@link #setDeadBand}.
+     */
+    public int getDeadBand(int channel) {
+        return mDeadBand[channel];
+    }
+
+    /**
+     * Filters sample {@code index} of {@code values}, which are indexed by channel and then by
+     * sample, and updates {@code displayed} with the values to show. Called from one thread at
+     * a time.
+     *
+     * @return true if any displayed value changed
+     */
+    public boolean filter(int[][] values, int index, int[] displayed) {
+        int channels = Math.min(mChannelCount, Math.min(values.length, displayed.length));
+        boolean changed = false;
+        for (int channel = 0; channel < channels; channel++) {
+            int value = values[channel][index];
+            if (mMedianWindow[channel] > 1) {
+                value = median(channel, value);
+            }
+
+            float filtered = value;
+            switch (mSmoothing[channel]) {
+                case SMOOTH_EMA:
+                    if (mPrimed[channel]) {
+                        filtered = mEstimate[channel]
+                                + mEmaAlpha[channel] * (value - mEstimate[channel]);
+                    }
+                    mEstimate[channel] = filtered;
+                    mPrimed[channel] = true;
+                    break;
+                case SMOOTH_KALMAN:
+                    if (mPrimed[channel]) {
+                        float variance = mErrorVariance[channel] + mProcessNoise[channel];
+                        float gain = variance / (variance + mMeasurementNoise[channel]);
+                        filtered = mEstimate[channel] + gain * (value - mEstimate[channel]);
+                        mErrorVariance[channel] = (1 - gain) * variance;
+                    } else {
+                        mErrorVariance[channel] = mMeasurementNoise[channel];
+                    }
+                    mEstimate[channel] = filtered;
+                    mPrimed[channel] = true;
+                    break;
+                default:
+                    break;
+            }
+
+            int rounded = Math.round(filtered);
+            if (rounded == mLastRounded[channel]) {
+                mSteadyCount[channel]++;
+            } else {
+                mLastRounded[channel] = rounded;
+                mSteadyCount[channel] = 1;
+            }
+            int shown = mDisplayed[channel];
+            if (rounded != shown && (Math.abs(rounded - shown) >= mDeadBand[channel]
+                    || rounded == 0 || mSteadyCount[channel] >= SETTLE_SAMPLES)) {
+                mDisplayed[channel] = rounded;
+                changed = true;
+            }
+            displayed[channel] = mDisplayed[channel];
+        }
+        mSampleCount++;
+        if (changed) {
+            mChangeCount++;
+        }
+        return changed;
+    }
+
+    /**
+     * Adds {@code value} to the channel's window and returns the median of the window.
+     */
+    private int median(int channel, int value) {
+        int[] history = mMedianHistory[channel];
+        int window = mMedianWindow[channel];
+        history[mMedianNext[channel]] = value;
+        mMedianNext[channel] = (mMedianNext[channel] + 1) % window;
+        int count = Math.min(mMedianCount[channel] + 1, window);
+        mMedianCount[channel] = count;
+
+        // Insertion sort of a handful of values.
+        int[] sorted = mMedianScratch;
+        for (int i = 0; i < count; i++) {
+            int v = history[i];
+            int j = i - 1;
+            while (j >= 0 && sorted[j] > v) {
+                sorted[j + 1] = sorted[j];
+                j--;
+            }
+            sorted[j + 1] = v;
+        }
+        return sorted[count / 2];
+    }
+
+    /**
+     * Returns the number of samples filtered.
+     */
+    public long getSampleCount() {
+        return mSampleCount;
+    }
+
+    /**
+     * Returns the number of samples that changed a displayed value.
+     */
+    public long getChangeCount() {
+        return mChangeCount;
+    }
+
+    public String getStats() {
+        long samples = mSampleCount;
+        long changes = mChangeCount;
+        return String.format(Locale.US, "filters: %d of %d samples passed the dead band (%.0f%%)",
+                changes, samples, samples == 0 ? 0 : 100.0 * changes / samples);
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.glassista.android.glass.ObdHud;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends synthetic Torque records at a fixed sample rate, standing in for the phone.
+ * <p>
+ * The values follow a ride that accelerates through the gears and back down, so they change
+ * every sample. Samples due at the same time are written together, as legacy text records or
+ * as one {@link TelemetryProtocol#VERSION_BINARY} packet that also carries coolant temperature
+ * and boost. This class uses no Android APIs, so it also runs on a development machine as a
+ * TCP server:
+ * <pre>
+ * java com.glassista.android.glass.ObdHud.SimulatedTorqueSender 5555 200 2
+ * </pre>
+ */
+public class SimulatedTorqueSender implements Runnable {
+
+    /**
+     * Record size of the Torque plugin, see {@code HudService.MSG_SIZE}.
+     */
+    public static final int FRAME_SIZE = 11;
+
+    /**
+     * Samples written per write() while sending as fast as possible.
+     */
+    private static final int MAX_BATCH = 64;
+
+    /**
+     * Length, in samples, of one simulated acceleration and deceleration.
+     */
+    private static final int CYCLE_SAMPLES = 600;
+
+    /**
+     * Channels sent with the binary protocol. Gear is left out: the HUD infers it.
+     */
+    private static final int[] BINARY_CHANNELS = {
+            ChannelRegistry.CHANNEL_RPM,
+            ChannelRegistry.CHANNEL_SPEED,
+            ChannelRegistry.CHANNEL_THROTTLE,
+            ChannelRegistry.CHANNEL_COOLANT_TEMP,
+            ChannelRegistry.CHANNEL_BOOST,
+    };
+
+    private static final int IDLE_RPM = 1200;
+
+    private final OutputStream mOutput;
+    private final int mSampleRateHz;
+    private final int mVersion;
+    private final byte[] mBuffer =
+            new byte[Math.max(MAX_BATCH * FRAME_SIZE, TelemetryProtocol.MAX_PACKET)];
+    private final int[] mValues = new int[ChannelRegistry.CHANNEL_BOOST + 1];
+    // mValues in the order of BINARY_CHANNELS.
+    private final int[] mBinaryValues = new int[BINARY_CHANNELS.length];
+    private final TelemetryPacketEncoder mEncoder = new TelemetryPacketEncoder(BINARY_CHANNELS);
+    private volatile boolean mShouldRun = true;
+    private volatile long mSentCount;
+
+    /**
+     * @param sampleRateHz samples per second, or 0 for as fast as the stream takes them
+     * @param version {@link TelemetryProtocol#VERSION_LEGACY} or
+     *         {@link TelemetryProtocol#VERSION_BINARY}
+     */
+    public SimulatedTorqueSender(OutputStream output, int sampleRateHz, int version) {
+        mOutput = output;
+        mSampleRateHz = sampleRateHz;
+        mVersion = version;
+    }
+
+    public void stop() {
+        mShouldRun = false;
+    }
+
+    public long getSentCount() {
+        return mSentCount;
+    }
+
+    @Override
+    public void run() {
+        long period = mSampleRateHz > 0 ? 1000000000L / mSampleRateHz : 0;
+        long start = System.nanoTime();
+        long sample = 0;
+        try {
+            if (mVersion != TelemetryProtocol.VERSION_LEGACY) {
+                mOutput.write(mBuffer, 0, TelemetryProtocol.writeHello(mVersion, mBuffer, 0));
+            }
+            while (mShouldRun) {
+                int batch;
+                if (period == 0) {
+                    batch = MAX_BATCH;
+                } else {
+                    // Schedule against absolute deadlines so the rate doesn't drift.
+                    long now = System.nanoTime();
+                    long due = (now - start) / period + 1 - sample;
+                    if (due <= 0) {
+                        LockSupport.parkNanos(start + sample * period - now);
+                        continue;
+                    }
+                    batch = (int) Math.min(due, MAX_BATCH);
+                }
+                int length = 0;
+                if (mVersion == TelemetryProtocol.VERSION_LEGACY) {
+                    for (int i = 0; i < batch; i++) {
+                        length = encode(sample++, length);
+                    }
+                } else {
+                    for (int i = 0; i < batch; i++) {
+                        long micros = period == 0
+                                ? (System.nanoTime() - start) / 1000 : sample * period / 1000;
+                        simulate(sample++);
+                        for (int c = 0; c < BINARY_CHANNELS.length; c++) {
+                            mBinaryValues[c] = mValues[BINARY_CHANNELS[c]];
+                        }
+                        if (!mEncoder.addSample(micros, mBinaryValues)) {
+                            break;
+                        }
+                    }
+                    length = mEncoder.finishPacket(mBuffer, 0);
+                }
+                mOutput.write(mBuffer, 0, length);
+                mOutput.flush();
+                mSentCount = sample;
+            }
+        } catch (IOException e) {
+            // The reader went away.
+        } finally {
+            try {
+                mOutput.close();
+            } catch (IOException e) {
+                // Nothing left to clean up.
+            }
+        }
+    }
+
+    /**
+     * Writes the record for sample number {@code n} to {@link #mBuffer} at {@code offset}.
+     *
+     * @return the offset after the record
+     */
+    private int encode(long n, int offset) {
+        simulate(n);
+        // The plugin's 11 byte record leaves a single digit for throttle.
+        int throttle = Math.min(9, mValues[ChannelRegistry.CHANNEL_THROTTLE] / 10);
+
+        int end = offset + FRAME_SIZE;
+        offset = IntFormatter.formatInt(mValues[ChannelRegistry.CHANNEL_RPM], mBuffer, offset);
+        mBuffer[offset++] = '\t';
+        offset = IntFormatter.formatInt(mValues[ChannelRegistry.CHANNEL_SPEED], mBuffer, offset);
+        mBuffer[offset++] = '\t';
+        offset = IntFormatter.formatInt(throttle, mBuffer, offset);
+        mBuffer[offset++] = '\t';
+        offset = IntFormatter.formatInt(mValues[ChannelRegistry.CHANNEL_GEAR], mBuffer, offset);
+        while (offset < end) {
+            mBuffer[offset++] = ' ';
+        }
+        return end;
+    }
+
+    /**
+     * Computes the values of sample number {@code n} into {@link #mValues}, indexed by channel.
+     */
+    private void simulate(long n) {
+        // Triangle wave between standstill and 99 mph.
+        int phase = (int) (n % CYCLE_SAMPLES);
+        int speed = 99 * Math.min(phase, CYCLE_SAMPLES - phase) / (CYCLE_SAMPLES / 2);
+        boolean accelerating = phase < CYCLE_SAMPLES / 2;
+        mValues[ChannelRegistry.CHANNEL_SPEED] = speed;
+        int gear = speed == 0 ? 0 : Math.min(6, 1 + speed / 17);
+        mValues[ChannelRegistry.CHANNEL_GEAR] = gear;
+        // Rpm follows the F800ST's gearing through each gear's speed band, with some noise.
+        int rpm = gear == 0 ? 0
+                : (int) (speed * GearEstimator.F800ST.getRpmPerMph(gear)) + (int) (n % 7);
+        mValues[ChannelRegistry.CHANNEL_RPM] = Math.max(IDLE_RPM, rpm);
+        mValues[ChannelRegistry.CHANNEL_THROTTLE] = accelerating ? 90 : 10;
+        // Warms up to 90 C over the first cycles.
+        mValues[ChannelRegistry.CHANNEL_COOLANT_TEMP] =
+                (int) Math.min(90, 20 + n / (CYCLE_SAMPLES / 10));
+        // Boost in kPa, only while accelerating hard in the higher gears.
+        mValues[ChannelRegistry.CHANNEL_BOOST] = accelerating && speed > 30 ? speed - 30 : 0;
+    }
+
+    /**
+     * Serves simulated records to one TCP client at a time.
+     * <p>
+     * Arguments: port, samples per second (0 for as fast as possible), protocol version.
+     */
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 5555;
+        int rate = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int version = args.length > 2
+                ? Integer.parseInt(args[2]) : TelemetryProtocol.VERSION_LEGACY;
+        ServerSocket server = new ServerSocket(port);
+        System.out.println("sending " + rate + " samples/s on port " + port);
+        while (true) {
+            Socket client = server.accept();
+            client.setTcpNoDelay(true);
+            System.out.println("client " + client.getRemoteSocketAddress());
+            SimulatedTorqueSender sender =
+                    new SimulatedTorqueSender(client.getOutputStream(), rate, version);
+            long start = System.nanoTime();
+            sender.run();
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("sent %d samples in %.1f s, %.0f samples/s%n",
+                    sender.getSentCount(), seconds, sender.getSentCount() / seconds);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.glassista.android.glass.ObdHud;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * TCP link to a Torque record source, e.g. {@link SimulatedTorqueSender} running on a
+ * development machine and reached through {@code adb reverse tcp:5555 tcp:5555}.
+ */
+public class SocketTransport implements Transport {
+
+    private static final String TAG = SocketTransport.class.getSimpleName();
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+
+    private final String mHost;
+    private final int mPort;
+    private volatile Socket mSocket;
+
+    public SocketTransport(String host, int port) {
+        mHost = host;
+        mPort = port;
+    }
+
+    /**
+     * Creates a transport from a "host:port" string.
+     */
+    public static SocketTransport parse(String hostAndPort) {
+        int colon = hostAndPort.lastIndexOf(':');
+        if (colon < 0) {
+            throw new IllegalArgumentException("expected host:port, got " + hostAndPort);
+        }
+        return new SocketTransport(hostAndPort.substring(0, colon),
+                Integer.parseInt(hostAndPort.substring(colon + 1)));
+    }
+
+    @Override
+    public InputStream connect() throws IOException {
+        Socket socket = new Socket();
+        mSocket = socket;
+        socket.setTcpNoDelay(true);
+        socket.connect(new InetSocketAddress(mHost, mPort), CONNECT_TIMEOUT_MILLIS);
+        return socket.getInputStream();
+    }
+
+    @Override
+    public void close() {
+        Socket socket = mSocket;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                Log.e(TAG, "socket close exception:", e);
+            }
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "tcp " + mHost + ":" + mPort;
+    }
+}
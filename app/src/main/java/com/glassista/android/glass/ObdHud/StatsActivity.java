@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.glassista.android.glass.ObdHud;
+
+import android.app.Activity;
+import android.os.Bundle;
+import android.view.View;
+import android.view.ViewGroup;
+
+import com.google.android.glass.app.Card;
+import com.google.android.glass.widget.CardScrollAdapter;
+import com.google.android.glass.widget.CardScrollView;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Shows a block of statistics text, a few lines per card in a card scroller, so none of it is
+ * cut off. Swipe down to dismiss.
+ */
+public class StatsActivity extends Activity {
+
+    public static final String EXTRA_TEXT = "text";
+    public static final String EXTRA_FOOTNOTE = "footnote";
+
+    /**
+     * Lines of statistics that fit on one card.
+     */
+    private static final int LINES_PER_CARD = 5;
+
+    private final List<Card> mCards = new ArrayList<Card>();
+    private CardScrollView mCardScrollView;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+
+        String text = getIntent().getStringExtra(EXTRA_TEXT);
+        String footnote = getIntent().getStringExtra(EXTRA_FOOTNOTE);
+        String[] lines = text == null ? new String[0] : text.split("\n");
+        int pages = Math.max(1, (lines.length + LINES_PER_CARD - 1) / LINES_PER_CARD);
+        for (int page = 0; page < pages; page++) {
+            int start = page * LINES_PER_CARD;
+            int end = Math.min(lines.length, start + LINES_PER_CARD);
+            Card card = new Card(this);
+            card.setText(join(Arrays.copyOfRange(lines, start, end)));
+            card.setFootnote(pages == 1 ? footnote
+                    : String.format(Locale.US, "%s %d/%d", footnote, page + 1, pages));
+            mCards.add(card);
+        }
+
+        mCardScrollView = new CardScrollView(this);
+        mCardScrollView.setAdapter(new StatsCardAdapter());
+        setContentView(mCardScrollView);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        mCardScrollView.activate();
+    }
+
+    @Override
+    protected void onPause() {
+        mCardScrollView.deactivate();
+        super.onPause();
+    }
+
+    private static String join(String[] lines) {
+        StringBuilder sb = new StringBuilder();
+        for (String line : lines) {
+            if (sb.length() > 0) {
+                sb.append('\n');
+            }
+            sb.append(line);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Serves the cards built in {@link #onCreate}.
+     */
+    private class StatsCardAdapter extends CardScrollAdapter {
+
+        @Override
+        public int getCount() {
+            return mCards.size();
+        }
+
+        @Override
+        public Object getItem(int position) {
+            return mCards.get(position);
+        }
+
+        @Override
+        public int getPosition(Object item) {
+            return mCards.indexOf(item);
+        }
+
+        @Override
+        public int getViewTypeCount() {
+            return Card.getViewTypeCount();
+        }
+
+        @Override
+        public int getItemViewType(int position) {
+            return mCards.get(position).getItemViewType();
+        }
+
+        @Override
+        public View getView(int position, View convertView, ViewGroup parent) {
+            return mCards.get(position).getView(convertView, parent);
+        }
+    }
+}
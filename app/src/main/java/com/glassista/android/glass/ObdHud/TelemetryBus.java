@@ -0,0 +1,350 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.glassista.android.glass.ObdHud;
+
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands every decoded sample from the thread reading the link to any number of consumers, each
+ * reading at its own pace.
+ * <p>
+ * The samples live in a pre-allocated {@link TelemetryHistory} ring that the producer appends
+ * to. Each {@link Consumer} keeps its own cursor into the ring, so consumers never contend with
+ * each other and publishing never allocates. What happens when a consumer falls behind is set
+ * per consumer:
+ * <ul>
+ * <li>{@link #POLICY_DROP_OLDEST} consumers skip ahead to the newest samples and count the
+ * ones they skipped. The producer never waits for them.
+ * <li>{@link #POLICY_NEVER_DROP} consumers see every sample. The producer waits before it would
+ * overwrite a sample such a consumer hasn't read yet.
+ * </ul>
+ * Consumers either poll the ring from a thread of their own, or have a {@link Processor} thread
+ * deliver the samples to a {@link Handler}. Waiting consumers park and are unparked by
+ * {@link #signal()}.
+ */
+public class TelemetryBus {
+
+    public static final int POLICY_DROP_OLDEST = 0;
+    public static final int POLICY_NEVER_DROP = 1;
+
+    /**
+     * How long the producer parks at a time while a never-drop consumer catches up.
+     */
+    private static final long PRODUCER_WAIT_NANOS = 100000;
+
+    /**
+     * How long a processor waits for samples before looking at its quit flag again.
+     */
+    private static final long PROCESSOR_WAIT_NANOS = 100000000;
+
+    /**
+     * Receives the samples of a {@link Processor}.
+     */
+    public interface Handler {
+        /**
+         * Called on the processor's thread with the next samples, in order. The range is only
+         * valid for the duration of the call.
+         */
+        void onSamples(TelemetryHistory.Range samples);
+    }
+
+    private final TelemetryHistory mRing;
+
+    // Copy on write; replaced under the bus lock, read without it.
+    private volatile Consumer[] mConsumers = new Consumer[0];
+
+    // Producer only: the never-drop cursor minimum as of the last check, and the consumers it
+    // was computed from.
+    private long mGatingSequence = Long.MAX_VALUE;
+    private Consumer[] mGatingConsumers;
+
+    private volatile long mStallCount;
+    private volatile long mStallNanos;
+
+    public TelemetryBus(TelemetryHistory ring) {
+        mRing = ring;
+    }
+
+    public TelemetryHistory getRing() {
+        return mRing;
+    }
+
+    /**
+     * Adds a consumer that starts with the next sample published.
+     *
+     * @param name name for the statistics
+     * @param policy {@link #POLICY_DROP_OLDEST} or {@link #POLICY_NEVER_DROP}
+     */
+    public Consumer addConsumer(String name, int policy) {
+        Consumer consumer = new Consumer(name, policy);
+        synchronized (this) {
+            Consumer[] consumers = new Consumer[mConsumers.length + 1];
+            System.arraycopy(mConsumers, 0, consumers, 0, mConsumers.length);
+            consumers[mConsumers.length] = consumer;
+            mConsumers = consumers;
+        }
+        return consumer;
+    }
+
+    private synchronized void removeConsumer(Consumer consumer) {
+        Consumer[] consumers = mConsumers;
+        for (int i = 0; i < consumers.length; i++) {
+            if (consumers[i] == consumer) {
+                Consumer[] remaining = new Consumer[consumers.length - 1];
+                System.arraycopy(consumers, 0, remaining, 0, i);
+                System.arraycopy(consumers, i + 1, remaining, i, remaining.length - i);
+                mConsumers = remaining;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Adds a consumer and starts a thread that hands its samples to {@code handler}.
+     *
+     * @param batchSize most samples per {@link Handler#onSamples} call; a drop-oldest consumer
+     *         with a batch size of 1 only ever sees the newest sample
+     */
+    public Processor startProcessor(String name, int policy, int batchSize, Handler handler) {
+        Processor processor = new Processor(addConsumer(name, policy), batchSize, handler);
+        processor.start();
+        return processor;
+    }
+
+    /**
+     * Publishes a sample. Waits while a never-drop consumer is a full ring behind. Must only be
+     * called from one thread; call {@link #signal()} after a batch of samples.
+     *
+     * @param values one value per channel of the ring
+     */
+    public void publish(long timestampNanos, int[] values) {
+        // Appending overwrites the slot of sequence - capacity and may tear the one after it.
+        long limit = mRing.getWriteCount() - mRing.getCapacity() + 2;
+        Consumer[] consumers = mConsumers;
+        if (mGatingSequence < limit || consumers != mGatingConsumers) {
+            waitForConsumers(consumers, limit);
+        }
+        mRing.append(timestampNanos, values);
+    }
+
+    private void waitForConsumers(Consumer[] consumers, long limit) {
+        long stallStart = 0;
+        while (true) {
+            long minimum = Long.MAX_VALUE;
+            for (Consumer consumer : consumers) {
+                if (consumer.mPolicy == POLICY_NEVER_DROP) {
+                    minimum = Math.min(minimum, consumer.mSequence);
+                }
+            }
+            mGatingSequence = minimum;
+            mGatingConsumers = consumers;
+            if (minimum >= limit) {
+                break;
+            }
+            if (stallStart == 0) {
+                stallStart = System.nanoTime();
+                mStallCount++;
+                signal();
+            }
+            LockSupport.parkNanos(PRODUCER_WAIT_NANOS);
+            consumers = mConsumers;
+        }
+        if (stallStart != 0) {
+            mStallNanos += System.nanoTime() - stallStart;
+        }
+    }
+
+    /**
+     * Wakes the consumers waiting for samples. Called by the producer after each batch.
+     */
+    public void signal() {
+        for (Consumer consumer : mConsumers) {
+            Thread waiter = consumer.mWaiter;
+            if (waiter != null) {
+                LockSupport.unpark(waiter);
+            }
+        }
+    }
+
+    /**
+     * Returns how often the producer had to wait for a never-drop consumer.
+     */
+    public long getStallCount() {
+        return mStallCount;
+    }
+
+    /**
+     * Returns the total time the producer waited for never-drop consumers, in nanoseconds.
+     */
+    public long getStallNanos() {
+        return mStallNanos;
+    }
+
+    /**
+     * Returns one line per consumer with its lag, and one for the producer's stalls.
+     */
+    public String getStats() {
+        StringBuilder builder = new StringBuilder();
+        for (Consumer consumer : mConsumers) {
+            builder.append(String.format(Locale.US, "%s: lag %d, max %d, dropped %d\n",
+                    consumer.mName, consumer.getLag(), consumer.mMaxLag,
+                    consumer.mDroppedCount));
+        }
+        builder.append(String.format(Locale.US, "producer stalls %d, %.1f ms",
+                mStallCount, mStallNanos / 1e6));
+        return builder.toString();
+    }
+
+    /**
+     * One reader of the bus, with its own cursor. Its methods must be called from one thread at
+     * a time.
+     */
+    public class Consumer {
+        private final String mName;
+        private final int mPolicy;
+
+        // Sequence number of the next sample to read.
+        private volatile long mSequence;
+        private volatile Thread mWaiter;
+        private volatile long mMaxLag;
+        private volatile long mDroppedCount;
+
+        private Consumer(String name, int policy) {
+            mName = name;
+            mPolicy = policy;
+            mSequence = mRing.getWriteCount();
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * Reads the next samples without waiting and moves the cursor past them.
+         *
+         * @return the number of samples read, also stored in {@code out.count}
+         */
+        public int poll(TelemetryHistory.Range out) {
+            long next = mSequence;
+            long end = mRing.getWriteCount();
+            long lag = end - next;
+            if (lag > mMaxLag) {
+                mMaxLag = lag;
+            }
+            long from = next;
+            if (mPolicy == POLICY_DROP_OLDEST) {
+                from = Math.max(next, end - out.timestamps.length);
+            }
+            int count = mRing.read(from, out);
+            if (out.firstSequence > next) {
+                mDroppedCount += out.firstSequence - next;
+            }
+            mSequence = out.firstSequence + count;
+            return count;
+        }
+
+        /**
+         * Reads the next samples, waiting up to {@code timeoutNanos} for some to be published.
+         *
+         * @return the number of samples read, 0 if none arrived in time
+         */
+        public int take(TelemetryHistory.Range out, long timeoutNanos) {
+            if (mRing.getWriteCount() == mSequence) {
+                long deadline = System.nanoTime() + timeoutNanos;
+                mWaiter = Thread.currentThread();
+                // Check again after announcing ourselves, so a signal can't slip in between.
+                long remaining = timeoutNanos;
+                while (mRing.getWriteCount() == mSequence && remaining > 0
+                        && !Thread.currentThread().isInterrupted()) {
+                    LockSupport.parkNanos(this, remaining);
+                    remaining = deadline - System.nanoTime();
+                }
+                mWaiter = null;
+            }
+            return poll(out);
+        }
+
+        /**
+         * Returns how many published samples this consumer has not read yet.
+         */
+        public long getLag() {
+            return mRing.getWriteCount() - mSequence;
+        }
+
+        public long getMaxLag() {
+            return mMaxLag;
+        }
+
+        /**
+         * Returns the number of samples skipped because the consumer fell behind.
+         */
+        public long getDroppedCount() {
+            return mDroppedCount;
+        }
+
+        /**
+         * Removes the consumer from the bus; a never-drop consumer no longer holds up the
+         * producer.
+         */
+        public void close() {
+            removeConsumer(this);
+        }
+    }
+
+    /**
+     * Thread that delivers the samples of one consumer to a {@link Handler}.
+     */
+    public class Processor extends Thread {
+        private final Consumer mConsumer;
+        private final TelemetryHistory.Range mRange;
+        private final Handler mHandler;
+        private volatile boolean mShouldRun = true;
+
+        private Processor(Consumer consumer, int batchSize, Handler handler) {
+            super(TelemetryBus.class.getSimpleName() + "-" + consumer.getName());
+            mConsumer = consumer;
+            mRange = new TelemetryHistory.Range(mRing.getChannelCount(), batchSize);
+            mHandler = handler;
+        }
+
+        public Consumer getConsumer() {
+            return mConsumer;
+        }
+
+        /**
+         * Stops the thread and removes its consumer from the bus.
+         */
+        public void quit() {
+            mShouldRun = false;
+            LockSupport.unpark(this);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (mShouldRun) {
+                    if (mConsumer.take(mRange, PROCESSOR_WAIT_NANOS) > 0) {
+                        mHandler.onSamples(mRange);
+                    }
+                }
+            } finally {
+                mConsumer.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.glassista.android.glass.ObdHud;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed capacity history of recent samples, stored as one primitive column per channel plus a
+ * column of timestamps.
+ * <p>
+ * Samples are numbered by a sequence that starts at 0 and grows with every append; the history
+ * holds the last {@link #getCapacity()} of them. One thread appends, any thread may read. A read
+ * copies a range into a reader-owned {@link Range} and then drops the entries the writer may have
+ * overwritten during the copy, so a reader never sees a mix of old and new samples. As in
+ * {@link TelemetrySnapshot}, the columns are atomic arrays so the Java memory model keeps the
+ * copy between the two reads of the write count: the writer stores with ordered writes after
+ * the count, and the reader loads with volatile reads before reading the count again. Neither
+ * appending nor reading allocates.
+ */
+public class TelemetryHistory {
+
+    /**
+     * A reader's copy of a range of the history. Allocate once and reuse.
+     */
+    public static class Range {
+        /** Sequence number of the first copied sample. */
+        public long firstSequence;
+        /** Number of samples copied. */
+        public int count;
+        /** Timestamps, in {@link System#nanoTime()} units, of the copied samples. */
+        public final long[] timestamps;
+        /** Values of the copied samples, indexed by channel and then by sample. */
+        public final int[][] values;
+
+        public Range(int channelCount, int maxSamples) {
+            timestamps = new long[maxSamples];
+            values = new int[channelCount][maxSamples];
+        }
+    }
+
+    private final int mCapacity;
+    private final int mMask;
+    private final AtomicLongArray mTimestamps;
+    private final AtomicIntegerArray[] mColumns;
+
+    // Number of samples appended so far; written by the appending thread only.
+    private volatile long mWriteCount;
+
+    /**
+     * Creates a history.
+     *
+     * @param channelCount number of value columns
+     * @param capacity number of samples kept, rounded up to a power of two
+     */
+    public TelemetryHistory(int channelCount, int capacity) {
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        mCapacity = size;
+        mMask = size - 1;
+        mTimestamps = new AtomicLongArray(size);
+        mColumns = new AtomicIntegerArray[channelCount];
+        for (int channel = 0; channel < channelCount; channel++) {
+            mColumns[channel] = new AtomicIntegerArray(size);
+        }
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    public int getChannelCount() {
+        return mColumns.length;
+    }
+
+    /**
+     * Returns the sequence number the next appended sample will get.
+     */
+    public long getWriteCount() {
+        return mWriteCount;
+    }
+
+    /**
+     * Returns the sequence number of the oldest sample still held.
+     */
+    public long getOldestSequence() {
+        return Math.max(0, mWriteCount - mCapacity);
+    }
+
+    /**
+     * Appends a sample, overwriting the oldest one once the history is full. Must only be called
+     * from one thread.
+     *
+     * @param values one value per channel
+     */
+    public void append(long timestampNanos, int[] values) {
+        long sequence = mWriteCount;
+        int index = (int) (sequence & mMask);
+        mTimestamps.lazySet(index, timestampNanos);
+        for (int channel = 0; channel < mColumns.length; channel++) {
+            mColumns[channel].lazySet(index, values[channel]);
+        }
+        mWriteCount = sequence + 1;
+    }
+
+    /**
+     * Copies samples starting at {@code fromSequence}, or at the oldest sample still held if
+     * that is later, until {@code out} is full or the newest sample has been copied.
+     *
+     * @return the number of samples copied, also stored in {@code out.count}
+     */
+    public int read(long fromSequence, Range out) {
+        long end = mWriteCount;
+        long start = Math.max(fromSequence, Math.max(0, end - mCapacity));
+        long stop = Math.min(end, start + out.timestamps.length);
+
+        int channels = Math.min(mColumns.length, out.values.length);
+        for (long sequence = start; sequence < stop; sequence++) {
+            int index = (int) (sequence & mMask);
+            int i = (int) (sequence - start);
+            out.timestamps[i] = mTimestamps.get(index);
+            for (int channel = 0; channel < channels; channel++) {
+                out.values[channel][i] = mColumns[channel].get(index);
+            }
+        }
+
+        // Anything the writer may have wrapped over while we were copying is discarded,
+        // including the slot of the sample it may be writing right now.
+        long oldestIntact = mWriteCount + 1 - mCapacity;
+        int skip = (int) Math.max(0, Math.min(stop, oldestIntact) - start);
+        int count = (int) (stop - start) - skip;
+        if (skip > 0 && count > 0) {
+            System.arraycopy(out.timestamps, skip, out.timestamps, 0, count);
+            for (int channel = 0; channel < channels; channel++) {
+                System.arraycopy(out.values[channel], skip, out.values[channel], 0, count);
+            }
+        }
+        out.firstSequence = start + skip;
+        out.count = Math.max(0, count);
+        return out.count;
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.glassista.android.glass.ObdHud;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Reads {@link TelemetryProtocol#VERSION_BINARY} packets off the link and hands their samples
+ * to a {@link Listener}, the binary counterpart of {@link SampleFramer} and
+ * {@link ObdSampleDecoder}.
+ * <p>
+ * Bytes are read in large chunks into a buffer that always has room for a whole packet. Every
+ * complete packet is checked against its checksum; on a mismatch the decoder slides forward
+ * to the next sync byte. Nothing is allocated per packet or sample.
+ */
+public class TelemetryPacketDecoder {
+
+    /**
+     * Receives the samples found in the stream.
+     */
+    public interface Listener {
+        /**
+         * Called for each sample.
+         *
+         * @param senderTimeMicros sample time on the sender's clock
+         * @param values latest value of every channel, indexed by channel id; channels the
+         *         sample doesn't carry keep their last value. Only valid for the duration of
+         *         the call.
+         */
+        void onSample(long senderTimeMicros, int[] values);
+
+        /**
+         * Called after the samples of one read have all been passed to {@link #onSample}.
+         *
+         * @param sampleCount number of samples in this batch
+         */
+        void onBatchComplete(int sampleCount);
+    }
+
+    private final byte[] mBuffer = new byte[2 * TelemetryProtocol.MAX_PACKET];
+    private final Listener mListener;
+
+    // Unparsed bytes are mBuffer[mStart, mEnd).
+    private int mStart;
+    private int mEnd;
+
+    private final int[] mValues = new int[ChannelRegistry.MAX_CHANNELS];
+    // Channel ids and running values of the packet being decoded.
+    private final int[] mPacketChannels = new int[ChannelRegistry.MAX_CHANNELS];
+    private final int[] mPacketValues = new int[ChannelRegistry.MAX_CHANNELS];
+    private int mPos;
+    private boolean mTruncated;
+    private long mChannelMask;
+
+    private long mReadTimeNanos;
+    private long mReadCount;
+    private long mPacketCount;
+    private long mSampleCount;
+    private long mCorruptPacketCount;
+    private long mResyncBytes;
+
+    public TelemetryPacketDecoder(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Performs one read from the stream and delivers every sample of the complete packets in
+     * it.
+     *
+     * @return the number of bytes read, or -1 at the end of the stream
+     */
+    public int read(InputStream in) throws IOException {
+        int bytesRead = in.read(mBuffer, mEnd, mBuffer.length - mEnd);
+        if (bytesRead < 0) {
+            return -1;
+        }
+        mReadTimeNanos = System.nanoTime();
+        mReadCount++;
+        mEnd += bytesRead;
+
+        int samples = 0;
+        int result;
+        while ((result = nextPacket()) >= 0) {
+            samples += result;
+        }
+
+        // Keep the partial packet at the front, leaving room for a whole one behind it.
+        if (mStart > 0) {
+            System.arraycopy(mBuffer, mStart, mBuffer, 0, mEnd - mStart);
+            mEnd -= mStart;
+            mStart = 0;
+        }
+        mSampleCount += samples;
+
+        if (samples > 0) {
+            mListener.onBatchComplete(samples);
+        }
+        return bytesRead;
+    }
+
+    /**
+     * Decodes the packet at {@link #mStart}, or skips a byte if there is none.
+     *
+     * @return the number of samples delivered, or -1 if more bytes are needed
+     */
+    private int nextPacket() {
+        final byte[] buffer = mBuffer;
+        int available = mEnd - mStart;
+        if (available < 1) {
+            return -1;
+        }
+        if ((buffer[mStart] & 0xff) != TelemetryProtocol.SYNC) {
+            mStart++;
+            mResyncBytes++;
+            return 0;
+        }
+
+        // The payload length is a varint of at most two bytes.
+        if (available < 2) {
+            return -1;
+        }
+        int length = buffer[mStart + 1] & 0x7f;
+        int lengthBytes = 1;
+        if ((buffer[mStart + 1] & 0x80) != 0) {
+            if (available < 3) {
+                return -1;
+            }
+            length |= (buffer[mStart + 2] & 0xff) << 7;
+            lengthBytes = 2;
+        }
+        if (length == 0 || length > TelemetryProtocol.MAX_PAYLOAD) {
+            mStart++;
+            mResyncBytes++;
+            return 0;
+        }
+        int payload = mStart + 1 + lengthBytes;
+        int packetSize = 1 + lengthBytes + length + 2;
+        if (available < packetSize) {
+            return -1;
+        }
+
+        int crc = ((buffer[payload + length] & 0xff) << 8) | (buffer[payload + length + 1] & 0xff);
+        if (crc != TelemetryProtocol.crc16(buffer, payload, length)) {
+            mCorruptPacketCount++;
+            mStart++;
+            mResyncBytes++;
+            return 0;
+        }
+
+        mStart += packetSize;
+        mPacketCount++;
+        return decodePayload(payload, payload + length);
+    }
+
+    /**
+     * Delivers the samples of a payload that passed its checksum.
+     *
+     * @return the number of samples delivered
+     */
+    private int decodePayload(int start, int end) {
+        mPos = start;
+        mTruncated = false;
+
+        long channelCount = readVarint(end);
+        if (mTruncated || channelCount > ChannelRegistry.MAX_CHANNELS) {
+            mCorruptPacketCount++;
+            return 0;
+        }
+        for (int i = 0; i < channelCount; i++) {
+            long id = readVarint(end);
+            if (mTruncated || id >= ChannelRegistry.MAX_CHANNELS) {
+                mCorruptPacketCount++;
+                return 0;
+            }
+            mPacketChannels[i] = (int) id;
+        }
+
+        int samples = 0;
+        long time = 0;
+        while (mPos < end) {
+            time += readVarint(end);
+            for (int i = 0; i < channelCount; i++) {
+                int value = (int) TelemetryProtocol.unzigzag(readVarint(end));
+                // The first sample of a packet is absolute, the others are deltas.
+                mPacketValues[i] = samples == 0 ? value : mPacketValues[i] + value;
+            }
+            if (mTruncated) {
+                mCorruptPacketCount++;
+                break;
+            }
+            for (int i = 0; i < channelCount; i++) {
+                mValues[mPacketChannels[i]] = mPacketValues[i];
+                mChannelMask |= 1L << mPacketChannels[i];
+            }
+            samples++;
+            mListener.onSample(time, mValues);
+        }
+        return samples;
+    }
+
+    /**
+     * Reads a varint at {@link #mPos}, setting {@link #mTruncated} instead if it runs past
+     * {@code end}.
+     */
+    private long readVarint(int end) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (mPos >= end) {
+                mTruncated = true;
+                return 0;
+            }
+            int b = mBuffer[mPos++];
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        mTruncated = true;
+        return 0;
+    }
+
+    /**
+     * Discards any buffered bytes and the channel values seen so far, e.g. after reconnecting.
+     */
+    public void reset() {
+        mStart = 0;
+        mEnd = 0;
+        Arrays.fill(mValues, 0);
+        mChannelMask = 0;
+    }
+
+    /**
+     * Returns the {@link System#nanoTime()} at which the last read returned. All samples of a
+     * batch share this time.
+     */
+    public long getReadTimeNanos() {
+        return mReadTimeNanos;
+    }
+
+    /**
+     * Returns a bit mask of the channel ids received so far.
+     */
+    public long getChannelMask() {
+        return mChannelMask;
+    }
+
+    public long getReadCount() {
+        return mReadCount;
+    }
+
+    public long getPacketCount() {
+        return mPacketCount;
+    }
+
+    public long getSampleCount() {
+        return mSampleCount;
+    }
+
+    /**
+     * Returns the number of packets dropped for a bad checksum or a malformed payload. Stray
+     * sync bytes met while resyncing count as well.
+     */
+    public long getCorruptPacketCount() {
+        return mCorruptPacketCount;
+    }
+
+    /**
+     * Returns the number of bytes skipped while looking for the next packet.
+     */
+    public long getResyncByteCount() {
+        return mResyncBytes;
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.glassista.android.glass.ObdHud;
+
+/**
+ * Packs samples into {@link TelemetryProtocol#VERSION_BINARY} packets, for the sending side of
+ * the link.
+ * <p>
+ * Add samples with {@link #addSample} until it reports the packet full or enough time has
+ * passed, then {@link #finishPacket} writes the packet out and starts the next one.
+ */
+public class TelemetryPacketEncoder {
+
+    private final int[] mChannelIds;
+    private final byte[] mPayload = new byte[TelemetryProtocol.MAX_PAYLOAD];
+    private final int mHeaderLength;
+    // Worst case for one sample: a 64 bit varint time and a 32 bit zigzag varint per channel.
+    private final int mMaxSampleLength;
+
+    private final int[] mPrevious;
+    private long mPreviousMicros;
+    private int mLength;
+    private int mSampleCount;
+
+    /**
+     * @param channelIds ids of the channels every sample carries, in the order of the values
+     *         passed to {@link #addSample}
+     */
+    public TelemetryPacketEncoder(int[] channelIds) {
+        mChannelIds = channelIds.clone();
+        mPrevious = new int[channelIds.length];
+        mMaxSampleLength = 10 + 5 * channelIds.length;
+
+        int offset = TelemetryProtocol.writeVarint(channelIds.length, mPayload, 0);
+        for (int id : channelIds) {
+            if (id < 0 || id >= ChannelRegistry.MAX_CHANNELS) {
+                throw new IllegalArgumentException("channel id out of range: " + id);
+            }
+            offset = TelemetryProtocol.writeVarint(id, mPayload, offset);
+        }
+        if (offset + mMaxSampleLength > TelemetryProtocol.MAX_PAYLOAD) {
+            throw new IllegalArgumentException("too many channels");
+        }
+        mHeaderLength = offset;
+        mLength = offset;
+    }
+
+    /**
+     * Adds a sample to the current packet.
+     *
+     * @param timeMicros sample time on the sender's clock; must not go backwards
+     * @param values one value per channel, in the order of the channel ids
+     * @return false if the packet is now too full for another sample
+     */
+    public boolean addSample(long timeMicros, int[] values) {
+        int offset = mLength;
+        if (mSampleCount == 0) {
+            offset = TelemetryProtocol.writeVarint(timeMicros, mPayload, offset);
+            for (int i = 0; i < mChannelIds.length; i++) {
+                offset = TelemetryProtocol.writeVarint(
+                        TelemetryProtocol.zigzag(values[i]), mPayload, offset);
+            }
+        } else {
+            offset = TelemetryProtocol.writeVarint(timeMicros - mPreviousMicros, mPayload, offset);
+            for (int i = 0; i < mChannelIds.length; i++) {
+                offset = TelemetryProtocol.writeVarint(
+                        TelemetryProtocol.zigzag((long) values[i] - mPrevious[i]),
+                        mPayload, offset);
+            }
+        }
+        System.arraycopy(values, 0, mPrevious, 0, mChannelIds.length);
+        mPreviousMicros = timeMicros;
+        mLength = offset;
+        mSampleCount++;
+        return mLength + mMaxSampleLength <= TelemetryProtocol.MAX_PAYLOAD;
+    }
+
+    /**
+     * Returns the number of samples in the current packet.
+     */
+    public int getSampleCount() {
+        return mSampleCount;
+    }
+
+    /**
+     * Writes the current packet to {@code out} and starts a new one. {@code out} needs room
+     * for {@link TelemetryProtocol#MAX_PACKET} bytes.
+     *
+     * @return the offset after the packet, or {@code offset} if the packet holds no samples
+     */
+    public int finishPacket(byte[] out, int offset) {
+        if (mSampleCount == 0) {
+            return offset;
+        }
+        out[offset++] = (byte) TelemetryProtocol.SYNC;
+        offset = TelemetryProtocol.writeVarint(mLength, out, offset);
+        System.arraycopy(mPayload, 0, out, offset, mLength);
+        offset += mLength;
+        int crc = TelemetryProtocol.crc16(mPayload, 0, mLength);
+        out[offset++] = (byte) (crc >>> 8);
+        out[offset++] = (byte) crc;
+
+        mLength = mHeaderLength;
+        mSampleCount = 0;
+        return offset;
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.glassista.android.glass.ObdHud;
+
+/**
+ * Wire formats spoken between the Torque plugin on the phone and the HUD.
+ * <p>
+ * {@link #VERSION_LEGACY} is the original stream of fixed size, tab separated ASCII records
+ * carrying rpm, speed, throttle and gear. {@link #VERSION_BINARY} carries any set of channels
+ * in checksummed packets of delta encoded samples:
+ * <pre>
+ * stream  := hello packet*
+ * hello   := 0xFE 'O' 'B' 'D' version
+ * packet  := SYNC length:varint payload crc16:2 bytes, big endian
+ * payload := channelCount:varint channelId:varint* sample+
+ * sample  := time:varint value:zigzag-varint*   (one value per channel, in header order)
+ * </pre>
+ * Channel ids are those of the {@link ChannelRegistry}.
+ * The first sample of a packet carries its time in microseconds on the sender's clock and its
+ * values as they are; every later sample carries the difference to the sample before it. Each
+ * packet thus decodes on its own, and a corrupt packet costs only its own samples.
+ * <p>
+ * The link is one way, so the sender announces its version with the hello and the receiver
+ * falls back to {@link #VERSION_LEGACY} for a stream that doesn't start with one. The hello
+ * byte 0xFE never appears in the ASCII records.
+ */
+public final class TelemetryProtocol {
+
+    public static final int VERSION_LEGACY = 1;
+    public static final int VERSION_BINARY = 2;
+
+    /** Newest version this build decodes. */
+    public static final int VERSION_LATEST = VERSION_BINARY;
+
+    public static final byte[] HELLO_MAGIC = {(byte) 0xFE, 'O', 'B', 'D'};
+    public static final int HELLO_SIZE = HELLO_MAGIC.length + 1;
+
+    /** First byte of every binary packet. */
+    public static final int SYNC = 0xA5;
+
+    /** Upper bound on the payload of one packet. */
+    public static final int MAX_PAYLOAD = 4096;
+
+    /** Upper bound on the size of one packet: sync, length, payload and checksum. */
+    public static final int MAX_PACKET = 1 + 2 + MAX_PAYLOAD + 2;
+
+    private static final char[] CRC_TABLE = new char[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 8;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+            }
+            CRC_TABLE[i] = (char) crc;
+        }
+    }
+
+    private TelemetryProtocol() {
+    }
+
+    /**
+     * Writes the hello announcing {@code version} at {@code offset}.
+     *
+     * @return the offset after the hello
+     */
+    public static int writeHello(int version, byte[] out, int offset) {
+        System.arraycopy(HELLO_MAGIC, 0, out, offset, HELLO_MAGIC.length);
+        out[offset + HELLO_MAGIC.length] = (byte) version;
+        return offset + HELLO_SIZE;
+    }
+
+    /**
+     * Returns the CRC-16/CCITT of {@code length} bytes of {@code buffer} at {@code offset}.
+     */
+    public static int crc16(byte[] buffer, int offset, int length) {
+        int crc = 0xFFFF;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            crc = ((crc << 8) ^ CRC_TABLE[((crc >>> 8) ^ buffer[i]) & 0xff]) & 0xFFFF;
+        }
+        return crc;
+    }
+
+    /**
+     * Writes {@code value} as an unsigned LEB128 varint at {@code offset}.
+     *
+     * @return the offset after the varint
+     */
+    public static int writeVarint(long value, byte[] out, int offset) {
+        while ((value & ~0x7FL) != 0) {
+            out[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out[offset++] = (byte) value;
+        return offset;
+    }
+
+    /**
+     * Maps signed values to unsigned ones so that small magnitudes make short varints.
+     */
+    public static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    public static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
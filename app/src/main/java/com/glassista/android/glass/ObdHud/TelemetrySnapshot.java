@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.glassista.android.glass.ObdHud;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latest value of every telemetry channel, handed from the Bluetooth thread to the render
+ * thread without locking.
+ * <p>
+ * This is a sequence lock for a single writer: the sequence number is odd while a sample is
+ * being written, and readers retry until they see the same even sequence number before and
+ * after copying the values. {@link #publish} therefore never waits, and {@link #read} always
+ * returns the values of one sample. The sequence is volatile and the values are kept in atomic
+ * arrays so the Java memory model keeps the value accesses between the two sequence accesses.
+ * <p>
+ * Every channel also records the sequence number of the sample that last changed it, so a
+ * reader can tell which channels changed since its previous read without comparing values.
+ */
+public class TelemetrySnapshot {
+
+    /**
+     * A reader's copy of one sample.
+     */
+    public static class Sample {
+        /** Values indexed by channel id, see {@link ChannelRegistry}. */
+        public final int[] values;
+        /** Sequence number of the sample that last changed each channel. */
+        public final int[] changeSequences;
+        /** Channels that changed between the previous read into this sample and this one. */
+        public long changedMask;
+        /** {@link System#nanoTime()} at which the sample was taken, see {@link SampleIngest}. */
+        public long timestampNanos;
+        /** Sequence number of the sample, see {@link #getSequence()}. */
+        public int sequence;
+
+        public Sample(int channelCount) {
+            values = new int[channelCount];
+            changeSequences = new int[channelCount];
+        }
+
+        /**
+         * Returns true if {@code channel} changed between the previous read into this sample
+         * and this one.
+         */
+        public boolean changed(int channel) {
+            return (changedMask & (1L << channel)) != 0;
+        }
+    }
+
+    private final int mChannelCount;
+
+    private volatile int mSequence;
+
+    private final AtomicIntegerArray mValues;
+    private final AtomicIntegerArray mChangeSequences;
+    private volatile long mTimestampNanos;
+
+    // The writer's own copy of the values, to find changed channels without volatile reads.
+    private final int[] mWriterValues;
+
+    /**
+     * @param channelCount size of the value arrays, see
+     *         {@link ChannelRegistry#getChannelCount()}
+     */
+    public TelemetrySnapshot(int channelCount) {
+        if (channelCount > ChannelRegistry.MAX_CHANNELS) {
+            throw new IllegalArgumentException("too many channels: " + channelCount);
+        }
+        mChannelCount = channelCount;
+        mValues = new AtomicIntegerArray(channelCount);
+        mChangeSequences = new AtomicIntegerArray(channelCount);
+        mWriterValues = new int[channelCount];
+    }
+
+    public int getChannelCount() {
+        return mChannelCount;
+    }
+
+    /**
+     * Publishes a new sample. Must only be called from one thread.
+     *
+     * @param values value of every channel, indexed by channel id
+     * @param timestampNanos {@link System#nanoTime()} at which the sample was taken, see
+     *        {@link SampleIngest}
+     * @return true if the sample differs from the previous one; an identical sample is not
+     *         published and leaves the sequence number unchanged
+     */
+    public boolean publish(int[] values, long timestampNanos) {
+        final int[] current = mWriterValues;
+        final int count = mChannelCount;
+        int first = 0;
+        while (first < count && values[first] == current[first]) {
+            first++;
+        }
+        if (first == count) {
+            if (mSequence != 0) {
+                return false;
+            }
+            // The first sample sets every channel.
+            first = 0;
+        }
+
+        int sequence = mSequence;
+        int next = sequence + 2;
+        mSequence = sequence + 1;
+        for (int channel = first; channel < count; channel++) {
+            int value = values[channel];
+            if (value != current[channel] || sequence == 0) {
+                current[channel] = value;
+                mValues.set(channel, value);
+                mChangeSequences.set(channel, next);
+            }
+        }
+        mTimestampNanos = timestampNanos;
+        mSequence = next;
+        return true;
+    }
+
+    /**
+     * Copies the latest sample into {@code out}, and marks the channels that changed since the
+     * previous read into {@code out} in {@link Sample#changedMask}.
+     *
+     * @return the sequence number of the sample that was copied
+     */
+    public int read(Sample out) {
+        final int[] values = out.values;
+        final int[] changeSequences = out.changeSequences;
+        final int count = Math.min(mChannelCount, values.length);
+        final int previous = out.sequence;
+        while (true) {
+            int sequence = mSequence;
+            if ((sequence & 1) != 0) {
+                continue;
+            }
+            for (int channel = 0; channel < count; channel++) {
+                values[channel] = mValues.get(channel);
+                changeSequences[channel] = mChangeSequences.get(channel);
+            }
+            out.timestampNanos = mTimestampNanos;
+            if (mSequence == sequence) {
+                long changed = 0;
+                for (int channel = 0; channel < count; channel++) {
+                    if (changeSequences[channel] - previous > 0) {
+                        changed |= 1L << channel;
+                    }
+                }
+                out.changedMask = changed;
+                out.sequence = sequence;
+                return sequence;
+            }
+        }
+    }
+
+    /**
+     * Returns the sequence number of the latest sample. It changes whenever a sample is
+     * published.
+     */
+    public int getSequence() {
+        return mSequence;
+    }
+}
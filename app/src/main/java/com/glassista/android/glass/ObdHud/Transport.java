@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.glassista.android.glass.ObdHud;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A link to a source of Torque records, such as the phone over Bluetooth or a test sender.
+ */
+public interface Transport {
+
+    /**
+     * Connects to the source. Blocks until connected. May be called again after
+     * {@link #close()} to reconnect.
+     *
+     * @return the stream of records
+     */
+    InputStream connect() throws IOException;
+
+    /**
+     * Closes the link. Unblocks a pending {@link #connect()} or read; may be called from any
+     * thread and more than once.
+     */
+    void close();
+
+    /**
+     * Returns a short description of the link for the log.
+     */
+    String getName();
+}
@@ -0,0 +1,375 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package com.glassista.android.glass.ObdHud;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+
+/**
+ * Reads a {@link TripArchiveFormat} archive: whole blocks, samples from a point in time on, and
+ * the minimum or maximum of a channel over a time range.
+ * <p>
+ * The index is loaded when the archive is opened; blocks are decoded from the mapped file on
+ * demand, one column at a time, into buffers owned by the archive. Queries only decode the
+ * blocks at the ends of their range and answer the others from the index, so their cost
+ * doesn't grow with the length of the range. Not thread safe.
+ */
+public class TripArchive {
+
+    private final RandomAccessFile mFile;
+    private final MappedByteBuffer mBuffer;
+    private final int mChannelCount;
+    private final long mStartWallMillis;
+    private final long mStartNanos;
+    private final long mSampleCount;
+    private final int mBlockCount;
+
+    // The index, one entry per block.
+    private final long[] mFirstTimestamps;
+    private final long[] mLastTimestamps;
+    private final long[] mOffsets;
+    private final long[] mFirstSamples;
+    private final int[] mSampleCounts;
+    private final int[][] mColumnEnds;
+    private final int[][] mMinima;
+    private final int[][] mMaxima;
+
+    // Decoding buffers.
+    private final byte[] mBytes;
+    private final long[] mBlockTimestamps = new long[TripArchiveFormat.BLOCK_SAMPLES];
+    private final int[] mBlockColumn = new int[TripArchiveFormat.BLOCK_SAMPLES];
+    private int mDecodedTimestampsBlock = -1;
+    private int mPosition;
+
+    private long mDecodedBlocks;
+    private long mSummarizedBlocks;
+
+    /**
+     * Opens an archive written by {@link TripArchiveWriter}.
+     *
+     * @throws IOException if the file can't be read or isn't a complete archive
+     */
+    public TripArchive(File file) throws IOException {
+        mFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel fileChannel = mFile.getChannel();
+            long size = fileChannel.size();
+            if (size < TripArchiveFormat.HEADER_SIZE + TripArchiveFormat.FOOTER_SIZE
+                    || size > Integer.MAX_VALUE) {
+                throw new IOException(file + ": not a trip archive");
+            }
+            mBuffer = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+            int footer = (int) size - TripArchiveFormat.FOOTER_SIZE;
+            if (mBuffer.getInt(TripArchiveFormat.OFFSET_MAGIC) != TripArchiveFormat.MAGIC
+                    || mBuffer.getShort(TripArchiveFormat.OFFSET_VERSION)
+                            != TripArchiveFormat.VERSION
+                    || mBuffer.getInt(TripArchiveFormat.OFFSET_BLOCK_SAMPLES)
+                            != TripArchiveFormat.BLOCK_SAMPLES
+                    || mBuffer.getInt(footer + TripArchiveFormat.FOOTER_MAGIC)
+                            != TripArchiveFormat.MAGIC) {
+                throw new IOException(file + ": not a complete trip archive");
+            }
+            mChannelCount = mBuffer.getShort(TripArchiveFormat.OFFSET_CHANNEL_COUNT);
+            mStartWallMillis = mBuffer.getLong(TripArchiveFormat.OFFSET_START_WALL_MILLIS);
+            mStartNanos = mBuffer.getLong(TripArchiveFormat.OFFSET_START_NANOS);
+            mSampleCount = mBuffer.getLong(footer + TripArchiveFormat.FOOTER_SAMPLE_COUNT);
+            mBlockCount = mBuffer.getInt(footer + TripArchiveFormat.FOOTER_BLOCK_COUNT);
+            long indexOffset = mBuffer.getLong(footer + TripArchiveFormat.FOOTER_INDEX_OFFSET);
+            int entrySize = TripArchiveFormat.indexEntrySize(mChannelCount);
+            if (mBlockCount < 0 || indexOffset < TripArchiveFormat.HEADER_SIZE
+                    || indexOffset + (long) mBlockCount * entrySize != footer) {
+                throw new IOException(file + ": corrupt trip archive index");
+            }
+
+            mFirstTimestamps = new long[mBlockCount];
+            mLastTimestamps = new long[mBlockCount];
+            mOffsets = new long[mBlockCount];
+            mFirstSamples = new long[mBlockCount];
+            mSampleCounts = new int[mBlockCount];
+            mColumnEnds = new int[mChannelCount + 1][mBlockCount];
+            mMinima = new int[mChannelCount][mBlockCount];
+            mMaxima = new int[mChannelCount][mBlockCount];
+            int maxBlockSize = 0;
+            long firstSample = 0;
+            for (int block = 0; block < mBlockCount; block++) {
+                int entry = (int) indexOffset + block * entrySize;
+                mFirstTimestamps[block] =
+                        mBuffer.getLong(entry + TripArchiveFormat.ENTRY_FIRST_TIMESTAMP);
+                mLastTimestamps[block] =
+                        mBuffer.getLong(entry + TripArchiveFormat.ENTRY_LAST_TIMESTAMP);
+                mOffsets[block] = mBuffer.getLong(entry + TripArchiveFormat.ENTRY_OFFSET);
+                mSampleCounts[block] =
+                        mBuffer.getInt(entry + TripArchiveFormat.ENTRY_SAMPLE_COUNT);
+                mFirstSamples[block] = firstSample;
+                firstSample += mSampleCounts[block];
+                boolean ordered = true;
+                for (int column = 0; column <= mChannelCount; column++) {
+                    mColumnEnds[column][block] = mBuffer.getInt(
+                            entry + TripArchiveFormat.ENTRY_COLUMN_ENDS + 4 * column);
+                    ordered &= mColumnEnds[column][block]
+                            >= (column == 0 ? 0 : mColumnEnds[column - 1][block]);
+                }
+                for (int channel = 0; channel < mChannelCount; channel++) {
+                    mMinima[channel][block] = mBuffer.getInt(
+                            entry + TripArchiveFormat.entryMinimum(mChannelCount, channel));
+                    mMaxima[channel][block] = mBuffer.getInt(
+                            entry + TripArchiveFormat.entryMaximum(mChannelCount, channel));
+                }
+                int blockSize = mColumnEnds[mChannelCount][block];
+                if (!ordered || mSampleCounts[block] <= 0
+                        || mSampleCounts[block] > TripArchiveFormat.BLOCK_SAMPLES
+                        || mOffsets[block] < TripArchiveFormat.HEADER_SIZE
+                        || mOffsets[block] + blockSize > indexOffset) {
+                    throw new IOException(file + ": corrupt trip archive block " + block);
+                }
+                maxBlockSize = Math.max(maxBlockSize, blockSize);
+            }
+            mBytes = new byte[maxBlockSize];
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    public void close() {
+        try {
+            mFile.close();
+        } catch (IOException e) {
+            // Nothing left to release.
+        }
+    }
+
+    public int getChannelCount() {
+        return mChannelCount;
+    }
+
+    public long getSampleCount() {
+        return mSampleCount;
+    }
+
+    public int getBlockCount() {
+        return mBlockCount;
+    }
+
+    public long getStartWallMillis() {
+        return mStartWallMillis;
+    }
+
+    /**
+     * Returns the {@link System#nanoTime()} at which the trip started; sample timestamps are on
+     * the same clock, so minute 42 of the trip is at {@code getStartNanos() + 42 minutes}.
+     */
+    public long getStartNanos() {
+        return mStartNanos;
+    }
+
+    /**
+     * Returns the index of the first block holding a sample at or after
+     * {@code timestampNanos}, or {@link #getBlockCount()} if there is none.
+     */
+    public int findBlock(long timestampNanos) {
+        int low = 0;
+        int high = mBlockCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mLastTimestamps[mid] - timestampNanos < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Decodes every sample of a block into {@code out}, which must hold at least
+     * {@link TripArchiveFormat#BLOCK_SAMPLES} samples.
+     *
+     * @return the number of samples decoded, also stored in {@code out.count}
+     */
+    public int readBlock(int block, TelemetryHistory.Range out) {
+        decodeTimestamps(block);
+        int count = mSampleCounts[block];
+        System.arraycopy(mBlockTimestamps, 0, out.timestamps, 0, count);
+        int channels = Math.min(mChannelCount, out.values.length);
+        for (int channel = 0; channel < channels; channel++) {
+            decodeColumn(block, channel, out.values[channel]);
+        }
+        out.firstSequence = mFirstSamples[block];
+        out.count = count;
+        return count;
+    }
+
+    /**
+     * Copies samples from the first one at or after {@code fromNanos} on, until {@code out} is
+     * full or the archive ends. {@code out.firstSequence} is set to the number of the first
+     * sample within the archive.
+     *
+     * @return the number of samples copied, also stored in {@code out.count}
+     */
+    public int read(long fromNanos, TelemetryHistory.Range out) {
+        int copied = 0;
+        int channels = Math.min(mChannelCount, out.values.length);
+        int block = findBlock(fromNanos);
+        out.firstSequence = block < mBlockCount ? -1 : mSampleCount;
+        for (; block < mBlockCount && copied < out.timestamps.length; block++) {
+            decodeTimestamps(block);
+            int count = mSampleCounts[block];
+            int start = 0;
+            while (start < count && mBlockTimestamps[start] - fromNanos < 0) {
+                start++;
+            }
+            int n = Math.min(count - start, out.timestamps.length - copied);
+            if (out.firstSequence < 0) {
+                out.firstSequence = mFirstSamples[block] + start;
+            }
+            System.arraycopy(mBlockTimestamps, start, out.timestamps, copied, n);
+            for (int channel = 0; channel < channels; channel++) {
+                decodeColumn(block, channel, mBlockColumn);
+                System.arraycopy(mBlockColumn, start, out.values[channel], copied, n);
+            }
+            copied += n;
+        }
+        out.count = copied;
+        return copied;
+    }
+
+    /**
+     * Returns the largest value of {@code channel} among the samples taken from
+     * {@code fromNanos} to {@code toNanos} inclusive, or {@link Integer#MIN_VALUE} if there are
+     * none.
+     */
+    public int max(int channel, long fromNanos, long toNanos) {
+        return extreme(channel, fromNanos, toNanos, true);
+    }
+
+    /**
+     * Returns the smallest value of {@code channel} among the samples taken from
+     * {@code fromNanos} to {@code toNanos} inclusive, or {@link Integer#MAX_VALUE} if there are
+     * none.
+     */
+    public int min(int channel, long fromNanos, long toNanos) {
+        return extreme(channel, fromNanos, toNanos, false);
+    }
+
+    private int extreme(int channel, long fromNanos, long toNanos, boolean max) {
+        int result = max ? Integer.MIN_VALUE : Integer.MAX_VALUE;
+        for (int block = findBlock(fromNanos);
+                block < mBlockCount && mFirstTimestamps[block] - toNanos <= 0; block++) {
+            if (mFirstTimestamps[block] - fromNanos >= 0 && mLastTimestamps[block] - toNanos <= 0) {
+                // The whole block is in range: its summary is the answer.
+                mSummarizedBlocks++;
+                result = max ? Math.max(result, mMaxima[channel][block])
+                        : Math.min(result, mMinima[channel][block]);
+                continue;
+            }
+            decodeTimestamps(block);
+            decodeColumn(block, channel, mBlockColumn);
+            for (int i = 0; i < mSampleCounts[block]; i++) {
+                long timestamp = mBlockTimestamps[i];
+                if (timestamp - fromNanos >= 0 && timestamp - toNanos <= 0) {
+                    result = max ? Math.max(result, mBlockColumn[i])
+                            : Math.min(result, mBlockColumn[i]);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Decodes the timestamps of {@code block} into {@link #mBlockTimestamps}, unless they
+     * already are.
+     */
+    private void decodeTimestamps(int block) {
+        if (block == mDecodedTimestampsBlock) {
+            return;
+        }
+        mDecodedBlocks++;
+        int end = load(block, 0);
+        long timestamp = mFirstTimestamps[block];
+        long interval = 0;
+        mBlockTimestamps[0] = timestamp;
+        for (int i = 1; i < mSampleCounts[block]; i++) {
+            interval += TelemetryProtocol.unzigzag(readVarint(end));
+            timestamp += interval;
+            mBlockTimestamps[i] = timestamp;
+        }
+        mDecodedTimestampsBlock = block;
+    }
+
+    /**
+     * Decodes the column of {@code channel} in {@code block} into {@code out}.
+     */
+    private void decodeColumn(int block, int channel, int[] out) {
+        int end = load(block, channel + 1);
+        long value = TelemetryProtocol.unzigzag(readVarint(end));
+        out[0] = (int) value;
+        for (int i = 1; i < mSampleCounts[block]; i++) {
+            value += TelemetryProtocol.unzigzag(readVarint(end));
+            out[i] = (int) value;
+        }
+    }
+
+    /**
+     * Copies column {@code column} of {@code block}, 0 for the timestamps, into
+     * {@link #mBytes} and points {@link #mPosition} at its start.
+     *
+     * @return the end of the column in {@link #mBytes}
+     */
+    private int load(int block, int column) {
+        int start = column == 0 ? 0 : mColumnEnds[column - 1][block];
+        int end = mColumnEnds[column][block];
+        mBuffer.position((int) mOffsets[block] + start);
+        mBuffer.get(mBytes, start, end - start);
+        mPosition = start;
+        return end;
+    }
+
+    /**
+     * Reads a varint from {@link #mBytes} at {@link #mPosition}. A truncated varint
+     * reads as if the missing bytes were zero.
+     */
+    private long readVarint(int end) {
+        long bits = 0;
+        int shift = 0;
+        while (mPosition < end) {
+            byte b = mBytes[mPosition++];
+            bits |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                break;
+            }
+            shift += 7;
+        }
+        return bits;
+    }
+
+    /**
+     * Returns how many blocks queries have decoded and how many they answered from the index.
+     */
+    public String getStats() {
+        return String.format(Locale.US,
+                "archive: %d samples in %d blocks, %d decoded, %d summarized",
+                mSampleCount, mBlockCount, mDecodedBlocks, mSummarizedBlocks);
+    }
+}
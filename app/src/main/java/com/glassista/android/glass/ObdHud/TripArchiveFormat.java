@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package com.glassista.android.glass.ObdHud;
+
+/**
+ * Layout of the compressed, columnar trip archives written by {@link TripArchiveWriter}.
+ * <p>
+ * An archive is a {@link #HEADER_SIZE} byte header, the blocks, a block index and a
+ * {@link #FOOTER_SIZE} byte footer, all little endian. A block holds up to
+ * {@link #BLOCK_SAMPLES} consecutive samples as one column for the timestamps followed by one
+ * column per channel. Timestamps are stored as varints of the zigzag encoded change in
+ * interval, starting from the block's first timestamp in the index, so a steady sample rate
+ * costs about a byte per sample. A channel column is the zigzag varint of its first value
+ * followed by those of the differences between consecutive values.
+ * <p>
+ * The index has one {@link #indexEntrySize(int)} byte entry per block: its first and last
+ * timestamp, file offset and sample count, the end of every column relative to the block, and
+ * the minimum and maximum of every channel. Time range queries find their blocks by binary
+ * search, answer whole blocks from the summaries and only decode the columns they need of the
+ * blocks at the ends of the range. The footer, found at the end of the file, locates the
+ * index. An archive is written under a temporary name and renamed once complete, so one with a
+ * valid footer is always whole.
+ */
+public final class TripArchiveFormat {
+
+    /** "OBDA". */
+    public static final int MAGIC = 0x4144424f;
+    public static final int VERSION = 1;
+
+    /**
+     * Samples per block, except for the last one of an archive.
+     */
+    public static final int BLOCK_SAMPLES = 1024;
+
+    public static final int HEADER_SIZE = 32;
+
+    public static final int OFFSET_MAGIC = 0;
+    public static final int OFFSET_VERSION = 4;
+    public static final int OFFSET_CHANNEL_COUNT = 6;
+    public static final int OFFSET_BLOCK_SAMPLES = 8;
+    public static final int OFFSET_FLAGS = 12;
+    public static final int OFFSET_START_WALL_MILLIS = 16;
+    public static final int OFFSET_START_NANOS = 24;
+
+    // Index entry fields, followed by the column ends and then the minima and maxima.
+    public static final int ENTRY_FIRST_TIMESTAMP = 0;
+    public static final int ENTRY_LAST_TIMESTAMP = 8;
+    public static final int ENTRY_OFFSET = 16;
+    public static final int ENTRY_SAMPLE_COUNT = 24;
+    public static final int ENTRY_COLUMN_ENDS = 28;
+
+    public static final int FOOTER_SIZE = 24;
+
+    // Footer fields, relative to the start of the footer.
+    public static final int FOOTER_INDEX_OFFSET = 0;
+    public static final int FOOTER_SAMPLE_COUNT = 8;
+    public static final int FOOTER_BLOCK_COUNT = 16;
+    public static final int FOOTER_MAGIC = 20;
+
+    public static final String FILE_SUFFIX = ".obdarc";
+
+    /**
+     * Longest varint, for a 64 bit value.
+     */
+    public static final int MAX_VARINT_SIZE = 10;
+
+    private TripArchiveFormat() {
+    }
+
+    /**
+     * Returns the size of one index entry for the given number of channels.
+     */
+    public static int indexEntrySize(int channelCount) {
+        return ENTRY_COLUMN_ENDS + 4 * (channelCount + 1) + 8 * channelCount;
+    }
+
+    /**
+     * Returns the offset within an index entry of the minimum of {@code channel}; the maxima
+     * follow the minima.
+     */
+    public static int entryMinimum(int channelCount, int channel) {
+        return ENTRY_COLUMN_ENDS + 4 * (channelCount + 1) + 4 * channel;
+    }
+
+    public static int entryMaximum(int channelCount, int channel) {
+        return entryMinimum(channelCount, channelCount + channel);
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package com.glassista.android.glass.ObdHud;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Writes samples into a {@link TripArchiveFormat} archive as they come, holding only the block
+ * being filled and the index in memory.
+ * <p>
+ * The archive is written to a temporary file next to the target and only renamed to it by
+ * {@link #finish()}; {@link #abort()} deletes it. Not thread safe.
+ */
+public class TripArchiveWriter {
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File mFile;
+    private final File mTempFile;
+    private final int mChannelCount;
+    private final FileOutputStream mOutput;
+
+    // The block being filled, by column.
+    private final long[] mTimestamps = new long[TripArchiveFormat.BLOCK_SAMPLES];
+    private final int[][] mValues;
+    private int mBlockCount;
+    private int mBlockSamples;
+
+    private final byte[] mBlock;
+    private final int mEntrySize;
+    private ByteBuffer mIndex;
+
+    private long mPosition;
+    private long mSampleCount;
+    private long mLastTimestamp;
+
+    /**
+     * Starts an archive.
+     *
+     * @param file file the finished archive is written to
+     * @param startWallMillis wall clock time at which the trip started
+     * @param startNanos {@link System#nanoTime()} at which the trip started
+     */
+    public TripArchiveWriter(File file, int channelCount, long startWallMillis, long startNanos)
+            throws IOException {
+        mFile = file;
+        mTempFile = new File(file.getPath() + TEMP_SUFFIX);
+        mChannelCount = channelCount;
+        mValues = new int[channelCount][TripArchiveFormat.BLOCK_SAMPLES];
+        mBlock = new byte[(channelCount + 1) * TripArchiveFormat.BLOCK_SAMPLES
+                * TripArchiveFormat.MAX_VARINT_SIZE];
+        mEntrySize = TripArchiveFormat.indexEntrySize(channelCount);
+        mIndex = ByteBuffer.allocate(64 * mEntrySize).order(ByteOrder.LITTLE_ENDIAN);
+
+        ByteBuffer header = ByteBuffer.allocate(TripArchiveFormat.HEADER_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(TripArchiveFormat.OFFSET_MAGIC, TripArchiveFormat.MAGIC);
+        header.putShort(TripArchiveFormat.OFFSET_VERSION, (short) TripArchiveFormat.VERSION);
+        header.putShort(TripArchiveFormat.OFFSET_CHANNEL_COUNT, (short) channelCount);
+        header.putInt(TripArchiveFormat.OFFSET_BLOCK_SAMPLES, TripArchiveFormat.BLOCK_SAMPLES);
+        header.putInt(TripArchiveFormat.OFFSET_FLAGS, 0);
+        header.putLong(TripArchiveFormat.OFFSET_START_WALL_MILLIS, startWallMillis);
+        header.putLong(TripArchiveFormat.OFFSET_START_NANOS, startNanos);
+
+        mOutput = new FileOutputStream(mTempFile);
+        try {
+            write(header.array(), TripArchiveFormat.HEADER_SIZE);
+        } catch (IOException e) {
+            abort();
+            throw e;
+        }
+    }
+
+    public long getSampleCount() {
+        return mSampleCount;
+    }
+
+    /**
+     * Returns the number of bytes written so far.
+     */
+    public long getSize() {
+        return mPosition;
+    }
+
+    /**
+     * Appends a sample. Timestamps must not decrease; one that does is taken as the previous
+     * one.
+     *
+     * @param values one value per channel
+     */
+    public void add(long timestampNanos, int[] values) throws IOException {
+        if (mSampleCount > 0 && timestampNanos - mLastTimestamp < 0) {
+            timestampNanos = mLastTimestamp;
+        }
+        mTimestamps[mBlockSamples] = timestampNanos;
+        for (int channel = 0; channel < mChannelCount; channel++) {
+            mValues[channel][mBlockSamples] = values[channel];
+        }
+        mLastTimestamp = timestampNanos;
+        mSampleCount++;
+        if (++mBlockSamples == TripArchiveFormat.BLOCK_SAMPLES) {
+            writeBlock();
+        }
+    }
+
+    /**
+     * Writes the last block, the index and the footer and renames the archive into place.
+     */
+    public void finish() throws IOException {
+        try {
+            if (mBlockSamples > 0) {
+                writeBlock();
+            }
+            long indexOffset = mPosition;
+            write(mIndex.array(), mIndex.position());
+
+            ByteBuffer footer = ByteBuffer.allocate(TripArchiveFormat.FOOTER_SIZE)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            footer.putLong(TripArchiveFormat.FOOTER_INDEX_OFFSET, indexOffset);
+            footer.putLong(TripArchiveFormat.FOOTER_SAMPLE_COUNT, mSampleCount);
+            footer.putInt(TripArchiveFormat.FOOTER_BLOCK_COUNT, mBlockCount);
+            footer.putInt(TripArchiveFormat.FOOTER_MAGIC, TripArchiveFormat.MAGIC);
+            write(footer.array(), TripArchiveFormat.FOOTER_SIZE);
+            mOutput.getFD().sync();
+        } catch (IOException e) {
+            abort();
+            throw e;
+        }
+        mOutput.close();
+        if (!mTempFile.renameTo(mFile)) {
+            mTempFile.delete();
+            throw new IOException("cannot rename " + mTempFile + " to " + mFile);
+        }
+    }
+
+    /**
+     * Abandons the archive and deletes what was written of it.
+     */
+    public void abort() {
+        try {
+            mOutput.close();
+        } catch (IOException e) {
+            // Deleted anyway.
+        }
+        mTempFile.delete();
+    }
+
+    /**
+     * Encodes the block being filled column by column and adds its index entry.
+     */
+    private void writeBlock() throws IOException {
+        int count = mBlockSamples;
+        if (mIndex.remaining() < mEntrySize) {
+            ByteBuffer index = ByteBuffer.allocate(mIndex.capacity() * 2)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            mIndex.flip();
+            index.put(mIndex);
+            mIndex = index;
+        }
+        int entry = mIndex.position();
+        mIndex.putLong(entry + TripArchiveFormat.ENTRY_FIRST_TIMESTAMP, mTimestamps[0]);
+        mIndex.putLong(entry + TripArchiveFormat.ENTRY_LAST_TIMESTAMP, mTimestamps[count - 1]);
+        mIndex.putLong(entry + TripArchiveFormat.ENTRY_OFFSET, mPosition);
+        mIndex.putInt(entry + TripArchiveFormat.ENTRY_SAMPLE_COUNT, count);
+
+        // Timestamps as changes in the interval between samples.
+        int length = 0;
+        long interval = 0;
+        for (int i = 1; i < count; i++) {
+            long next = mTimestamps[i] - mTimestamps[i - 1];
+            length = TelemetryProtocol.writeVarint(
+                    TelemetryProtocol.zigzag(next - interval), mBlock, length);
+            interval = next;
+        }
+        mIndex.putInt(entry + TripArchiveFormat.ENTRY_COLUMN_ENDS, length);
+
+        for (int channel = 0; channel < mChannelCount; channel++) {
+            int[] column = mValues[channel];
+            int min = column[0];
+            int max = column[0];
+            length = TelemetryProtocol.writeVarint(
+                    TelemetryProtocol.zigzag(column[0]), mBlock, length);
+            for (int i = 1; i < count; i++) {
+                int value = column[i];
+                length = TelemetryProtocol.writeVarint(
+                        TelemetryProtocol.zigzag((long) value - column[i - 1]), mBlock, length);
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+            mIndex.putInt(entry + TripArchiveFormat.ENTRY_COLUMN_ENDS + 4 * (channel + 1), length);
+            mIndex.putInt(entry + TripArchiveFormat.entryMinimum(mChannelCount, channel), min);
+            mIndex.putInt(entry + TripArchiveFormat.entryMaximum(mChannelCount, channel), max);
+        }
+        mIndex.position(entry + mEntrySize);
+
+        write(mBlock, length);
+        mBlockCount++;
+        mBlockSamples = 0;
+    }
+
+    private void write(byte[] bytes, int length) throws IOException {
+        mOutput.write(bytes, 0, length);
+        mPosition += length;
+    }
+}
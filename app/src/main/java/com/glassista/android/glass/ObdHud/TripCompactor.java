@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package com.glassista.android.glass.ObdHud;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Compacts the raw trip logs in a directory into {@link TripArchiveFormat} archives, on a
+ * background priority thread.
+ * <p>
+ * Every trip other than the one being recorded that has log segments is streamed into an
+ * archive, one record at a time. The archive is reopened and its sample count checked against
+ * the records read before the segments are deleted, so a failure at any point leaves the raw
+ * log in place to be compacted again next time. An archive is only written under its final
+ * name once complete, so a trip that has one is never compacted again: segments left over
+ * because they could not be deleted are already in it, and deleting them is retried.
+ */
+public class TripCompactor extends Thread {
+
+    private static final String TAG = TripCompactor.class.getSimpleName();
+
+    private final File mDirectory;
+    private final String mActiveTrip;
+    private volatile boolean mShouldRun = true;
+
+    /**
+     * @param directory directory holding the trip logs
+     * @param activeTrip name of the trip being recorded, left alone; null if none
+     */
+    public TripCompactor(File directory, String activeTrip) {
+        super(TAG);
+        mDirectory = directory;
+        mActiveTrip = activeTrip;
+    }
+
+    /**
+     * Stops compacting; the archive being written is abandoned.
+     */
+    public void quit() {
+        mShouldRun = false;
+    }
+
+    /**
+     * Returns the name of the trip a log segment or archive belongs to.
+     */
+    public static String getTripName(File file) {
+        String name = file.getName();
+        if (name.endsWith(TripArchiveFormat.FILE_SUFFIX)) {
+            return name.substring(0, name.length() - TripArchiveFormat.FILE_SUFFIX.length());
+        }
+        // Segments are named <trip>-<index>.
+        return name.substring(0, name.lastIndexOf('-'));
+    }
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        File[] segments = TripReplayer.findSegments(mDirectory, "");
+        int start = 0;
+        while (start < segments.length && mShouldRun) {
+            String trip = getTripName(segments[start]);
+            int end = start + 1;
+            while (end < segments.length && getTripName(segments[end]).equals(trip)) {
+                end++;
+            }
+            if (!trip.equals(mActiveTrip)) {
+                compactTrip(trip, Arrays.copyOfRange(segments, start, end));
+            }
+            start = end;
+        }
+    }
+
+    private void compactTrip(String trip, File[] segments) {
+        File archive = new File(mDirectory, trip + TripArchiveFormat.FILE_SUFFIX);
+        if (archive.exists()) {
+            Log.w(TAG, trip + " is already archived, deleting its leftover segments");
+            deleteSegments(segments);
+            return;
+        }
+        long rawSize = 0;
+        for (File segment : segments) {
+            rawSize += segment.length();
+        }
+        long start = System.nanoTime();
+        long count;
+        try {
+            count = compact(segments, archive);
+            if (count < 0) {
+                return;
+            }
+            TripArchive check = new TripArchive(archive);
+            long archived = check.getSampleCount();
+            check.close();
+            if (archived != count) {
+                throw new IOException(archive + " holds " + archived + " of " + count
+                        + " samples");
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "compacting " + trip + " failed", e);
+            archive.delete();
+            return;
+        }
+        deleteSegments(segments);
+        Log.v(TAG, String.format(Locale.US, "compacted %s: %d samples, %d to %d bytes in %.1f s",
+                trip, count, rawSize, archive.length(), (System.nanoTime() - start) / 1e9));
+    }
+
+    private static void deleteSegments(File[] segments) {
+        for (File segment : segments) {
+            if (!segment.delete()) {
+                Log.w(TAG, "cannot delete " + segment);
+            }
+        }
+    }
+
+    /**
+     * Streams the records of a trip's log segments into a new archive.
+     *
+     * @return the number of samples archived, or -1 if stopped first
+     */
+    public long compact(File[] segments, File archive) throws IOException {
+        TripArchiveWriter writer = null;
+        int[] values = null;
+        try {
+            for (File file : segments) {
+                RandomAccessFile segment = new RandomAccessFile(file, "r");
+                try {
+                    FileChannel channel = segment.getChannel();
+                    MappedByteBuffer buffer =
+                            channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                    if (!TripLogFormat.checkHeader(buffer)) {
+                        Log.w(TAG, "skipping unreadable segment " + file);
+                        continue;
+                    }
+                    int channelCount = buffer.getShort(TripLogFormat.OFFSET_CHANNEL_COUNT);
+                    if (writer == null) {
+                        writer = new TripArchiveWriter(archive, channelCount,
+                                buffer.getLong(TripLogFormat.OFFSET_START_WALL_MILLIS),
+                                buffer.getLong(TripLogFormat.OFFSET_START_NANOS));
+                        values = new int[channelCount];
+                    } else if (channelCount != values.length) {
+                        throw new IOException(file + " has " + channelCount + " channels, not "
+                                + values.length);
+                    }
+                    int recordSize = buffer.getInt(TripLogFormat.OFFSET_RECORD_SIZE);
+                    long records = TripLogFormat.recordCount(buffer);
+                    for (long record = 0; record < records; record++) {
+                        if (!mShouldRun) {
+                            writer.abort();
+                            return -1;
+                        }
+                        int position = TripLogFormat.HEADER_SIZE + (int) (record * recordSize);
+                        long timestamp = buffer.getLong(position);
+                        position += 8;
+                        for (int c = 0; c < channelCount; c++) {
+                            values[c] = buffer.getInt(position + 4 * c);
+                        }
+                        writer.add(timestamp, values);
+                    }
+                } finally {
+                    segment.close();
+                }
+            }
+            if (writer == null) {
+                throw new IOException("no readable segments");
+            }
+            writer.finish();
+            return writer.getSampleCount();
+        } catch (IOException e) {
+            if (writer != null) {
+                writer.abort();
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.glassista.android.glass.ObdHud;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Layout of the binary trip log segments written by {@link TripRecorder}.
+ * <p>
+ * A segment is a fixed {@link #HEADER_SIZE} byte header followed by fixed size records, all
+ * little endian. A record is the sample time ({@link System#nanoTime()}, see
+ * {@link SampleIngest}) as a long followed by one int per channel. Only the first
+ * {@link #OFFSET_RECORD_COUNT} records are valid: the count is advanced after the records it
+ * covers have been written, so a segment cut short by a crash still reads back consistently.
+ * {@link #FLAG_CLOSED} is set once the writer has finished with the segment.
+ * <p>
+ * Finished trips are compacted into a {@link TripArchiveFormat} archive by
+ * {@link TripCompactor}.
+ */
+public final class TripLogFormat {
+
+    /** "OBDT". */
+    public static final int MAGIC = 0x5444424f;
+    public static final int VERSION = 1;
+
+    public static final int HEADER_SIZE = 64;
+
+    public static final int OFFSET_MAGIC = 0;
+    public static final int OFFSET_VERSION = 4;
+    public static final int OFFSET_CHANNEL_COUNT = 6;
+    public static final int OFFSET_RECORD_SIZE = 8;
+    public static final int OFFSET_FLAGS = 12;
+    public static final int OFFSET_START_WALL_MILLIS = 16;
+    public static final int OFFSET_START_NANOS = 24;
+    public static final int OFFSET_RECORD_COUNT = 32;
+    public static final int OFFSET_SEGMENT_INDEX = 40;
+
+    public static final int FLAG_CLOSED = 1;
+
+    public static final String FILE_SUFFIX = ".obdlog";
+
+    private TripLogFormat() {
+    }
+
+    /**
+     * Returns the size of one record for the given number of channels.
+     */
+    public static int recordSize(int channelCount) {
+        return 8 + 4 * channelCount;
+    }
+
+    /**
+     * Checks the header at the start of {@code buffer} and sets its byte order.
+     *
+     * @return false if the buffer doesn't hold a trip log segment this version can read
+     */
+    public static boolean checkHeader(ByteBuffer buffer) {
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer.limit() >= HEADER_SIZE
+                && buffer.getInt(OFFSET_MAGIC) == MAGIC
+                && buffer.getShort(OFFSET_VERSION) == VERSION
+                && buffer.getInt(OFFSET_RECORD_SIZE)
+                        == recordSize(buffer.getShort(OFFSET_CHANNEL_COUNT));
+    }
+
+    /**
+     * Returns the number of complete records in a segment, trusting the header count only as far
+     * as the buffer actually extends.
+     */
+    public static long recordCount(ByteBuffer buffer) {
+        long count = buffer.getLong(OFFSET_RECORD_COUNT);
+        long fit = (buffer.limit() - HEADER_SIZE) / buffer.getInt(OFFSET_RECORD_SIZE);
+        return Math.max(0, Math.min(count, fit));
+    }
+}
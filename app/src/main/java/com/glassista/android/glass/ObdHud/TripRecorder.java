@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.glassista.android.glass.ObdHud;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes every sample of a trip to memory mapped, append only log segments in the
+ * {@link TripLogFormat}.
+ * <p>
+ * The recorder runs on its own thread as a never-drop consumer of the {@link TelemetryBus}, so
+ * every sample is written. Ingest only waits on flash if the recorder falls a whole ring behind.
+ */
+public class TripRecorder extends Thread {
+
+    private static final String TAG = TripRecorder.class.getSimpleName();
+
+    /**
+     * Records per segment. A segment's size follows from the channel count, see
+     * {@link TripLogFormat#recordSize}.
+     */
+    private static final int SEGMENT_RECORDS = 1 << 16;
+
+    /**
+     * How long, in nanoseconds, the recorder waits for new samples before checking whether
+     * written records are due to be forced to flash.
+     */
+    private static final long WAIT_NANOS = 100000000;
+
+    /**
+     * How often, in milliseconds, written records are forced to flash.
+     */
+    private static final long SYNC_INTERVAL_MILLIS = 5000;
+
+    private final TelemetryBus.Consumer mConsumer;
+    private final File mDirectory;
+    private final String mTripName;
+    private final int mChannelCount;
+    private final int mRecordSize;
+    private final TelemetryHistory.Range mRange;
+
+    private volatile boolean mShouldRun = true;
+
+    private final long mStartWallMillis = System.currentTimeMillis();
+    private final long mStartNanos = System.nanoTime();
+
+    private RandomAccessFile mFile;
+    private FileChannel mChannel;
+    private MappedByteBuffer mBuffer;
+    private int mSegmentIndex = -1;
+    private int mSegmentRecords;
+
+    private volatile long mRecordCount;
+
+    /**
+     * Creates a recorder for a new trip. Call {@link #start()} to begin recording.
+     *
+     * @param bus bus to record from; recording starts with the next sample published
+     * @param directory directory for the segment files
+     */
+    public TripRecorder(TelemetryBus bus, File directory) {
+        super(TAG);
+        mConsumer = bus.addConsumer(TAG, TelemetryBus.POLICY_NEVER_DROP);
+        mDirectory = directory;
+        mTripName = "trip-" + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US)
+                .format(new Date(mStartWallMillis));
+        mChannelCount = bus.getRing().getChannelCount();
+        mRecordSize = TripLogFormat.recordSize(mChannelCount);
+        mRange = new TelemetryHistory.Range(mChannelCount, 256);
+    }
+
+    /**
+     * Stops recording after writing the samples already published. The thread is not
+     * interrupted, since that would close the file channel under it.
+     */
+    public void quit() {
+        mShouldRun = false;
+        LockSupport.unpark(this);
+    }
+
+    public String getTripName() {
+        return mTripName;
+    }
+
+    public long getRecordCount() {
+        return mRecordCount;
+    }
+
+    /**
+     * Returns how many published samples have not been written yet.
+     */
+    public long getLag() {
+        return mConsumer.getLag();
+    }
+
+    @Override
+    public void run() {
+        Log.v(TAG, "recording " + mTripName + " to " + mDirectory);
+        try {
+            if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+                throw new IOException("cannot create " + mDirectory);
+            }
+            long lastSync = SystemClock.elapsedRealtime();
+            boolean running = true;
+            while (running) {
+                running = mShouldRun;
+                // Drain everything available; after quit() this writes the last samples.
+                int written = drain(running ? WAIT_NANOS : 0);
+                while (written == mRange.timestamps.length) {
+                    written = drain(0);
+                }
+
+                long now = SystemClock.elapsedRealtime();
+                if (mBuffer != null && now - lastSync >= SYNC_INTERVAL_MILLIS) {
+                    mBuffer.force();
+                    lastSync = now;
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "trip recording failed", e);
+        } finally {
+            mConsumer.close();
+            closeSegment();
+        }
+        Log.v(TAG, "recorded " + mRecordCount + " samples, max lag " + mConsumer.getMaxLag());
+    }
+
+    /**
+     * Writes the samples published since the last call, as many as fit into {@link #mRange}.
+     *
+     * @param waitNanos how long to wait for samples if there are none
+     * @return the number of samples written
+     */
+    private int drain(long waitNanos) throws IOException {
+        int count = mConsumer.take(mRange, waitNanos);
+        if (count == 0) {
+            return 0;
+        }
+
+        for (int i = 0; i < count; i++) {
+            if (mBuffer == null || mSegmentRecords == SEGMENT_RECORDS) {
+                closeSegment();
+                openSegment();
+            }
+            int position = TripLogFormat.HEADER_SIZE + mSegmentRecords * mRecordSize;
+            mBuffer.putLong(position, mRange.timestamps[i]);
+            position += 8;
+            for (int channel = 0; channel < mChannelCount; channel++) {
+                mBuffer.putInt(position, mRange.values[channel][i]);
+                position += 4;
+            }
+            mSegmentRecords++;
+        }
+        // Publish the records only after they have been written.
+        mBuffer.putLong(TripLogFormat.OFFSET_RECORD_COUNT, mSegmentRecords);
+
+        mRecordCount += count;
+        return count;
+    }
+
+    private void openSegment() throws IOException {
+        mSegmentIndex++;
+        File file = new File(mDirectory, String.format(Locale.US, "%s-%03d%s",
+                mTripName, mSegmentIndex, TripLogFormat.FILE_SUFFIX));
+        long size = TripLogFormat.HEADER_SIZE + (long) SEGMENT_RECORDS * mRecordSize;
+
+        mFile = new RandomAccessFile(file, "rw");
+        mChannel = mFile.getChannel();
+        mBuffer = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        mSegmentRecords = 0;
+
+        // The magic is written last so a half written header is never taken for a valid one.
+        mBuffer.putLong(TripLogFormat.OFFSET_RECORD_COUNT, 0);
+        mBuffer.putShort(TripLogFormat.OFFSET_VERSION, (short) TripLogFormat.VERSION);
+        mBuffer.putShort(TripLogFormat.OFFSET_CHANNEL_COUNT, (short) mChannelCount);
+        mBuffer.putInt(TripLogFormat.OFFSET_RECORD_SIZE, mRecordSize);
+        mBuffer.putInt(TripLogFormat.OFFSET_FLAGS, 0);
+        mBuffer.putLong(TripLogFormat.OFFSET_START_WALL_MILLIS, mStartWallMillis);
+        mBuffer.putLong(TripLogFormat.OFFSET_START_NANOS, mStartNanos);
+        mBuffer.putInt(TripLogFormat.OFFSET_SEGMENT_INDEX, mSegmentIndex);
+        mBuffer.putInt(TripLogFormat.OFFSET_MAGIC, TripLogFormat.MAGIC);
+        mBuffer.force();
+        Log.v(TAG, "opened " + file);
+    }
+
+    private void closeSegment() {
+        if (mBuffer == null) {
+            return;
+        }
+        try {
+            mBuffer.putLong(TripLogFormat.OFFSET_RECORD_COUNT, mSegmentRecords);
+            mBuffer.putInt(TripLogFormat.OFFSET_FLAGS, TripLogFormat.FLAG_CLOSED);
+            mBuffer.force();
+            mBuffer = null;
+            // Give back the preallocated space the trip didn't use.
+            mChannel.truncate(TripLogFormat.HEADER_SIZE + (long) mSegmentRecords * mRecordSize);
+        } catch (IOException e) {
+            Log.e(TAG, "closing segment failed", e);
+        } finally {
+            try {
+                mFile.close();
+            } catch (IOException e) {
+                Log.e(TAG, "file close exception:", e);
+            }
+            mFile = null;
+            mChannel = null;
+        }
+    }
+}
@@ -0,0 +1,366 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.glassista.android.glass.ObdHud;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays a trip recorded by {@link TripRecorder} back through a {@link SampleIngest}, so the
+ * recorded samples take the same framing, decoding, history and render path as live ones.
+ * The trip is read from its log segments or, once compacted, from its {@link TripArchive}.
+ * <p>
+ * The samples are re-encoded as Torque text records and served by a stream that releases
+ * them at their recorded pace multiplied by the replay speed, or as fast as the ingest path
+ * will take them. Samples that fall due together are returned by one read, just as a busy
+ * Bluetooth link would. The same trip always produces the same byte stream.
+ */
+public class TripReplayer extends Thread {
+
+    private static final String TAG = TripReplayer.class.getSimpleName();
+
+    /**
+     * Speed that replays without pauses.
+     */
+    public static final float SPEED_AS_FAST_AS_POSSIBLE = 0f;
+
+    /**
+     * Size of a replayed record: the four fields with sign and digits, tab separated and padded
+     * with spaces, which {@link ObdSampleDecoder} skips.
+     */
+    public static final int FRAME_SIZE = 48;
+
+    private final File[] mSegments;
+    private final float mSpeed;
+    private final SampleIngest mIngest;
+    private volatile boolean mShouldRun = true;
+
+    /**
+     * @param segments segment files of one trip, in order, or its archive
+     * @param speed playback speed, 1 for real time, or {@link #SPEED_AS_FAST_AS_POSSIBLE}
+     * @param ingest ingest path to feed; must be created with {@link #FRAME_SIZE}
+     */
+    public TripReplayer(File[] segments, float speed, SampleIngest ingest) {
+        super(TAG);
+        mSegments = segments;
+        mSpeed = speed;
+        mIngest = ingest;
+    }
+
+    /**
+     * Returns the segment files of the trip whose name starts with {@code tripName}, or of the
+     * latest trip if {@code tripName} is null, in order. Returns an empty array if there is no
+     * such trip.
+     */
+    public static File[] findSegments(File directory, String tripName) {
+        File[] files = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().endsWith(TripLogFormat.FILE_SUFFIX);
+            }
+        });
+        if (files == null || files.length == 0) {
+            return new File[0];
+        }
+        // Trip and segment names sort chronologically.
+        Arrays.sort(files);
+        String prefix = tripName;
+        if (prefix == null) {
+            String last = files[files.length - 1].getName();
+            prefix = last.substring(0, last.lastIndexOf('-'));
+        }
+        int count = 0;
+        for (File file : files) {
+            if (file.getName().startsWith(prefix)) {
+                files[count++] = file;
+            }
+        }
+        return Arrays.copyOf(files, count);
+    }
+
+    /**
+     * Returns the files of the trip whose name starts with {@code tripName}, or of the latest
+     * trip if {@code tripName} is null: its archive if it has one, otherwise its log segments
+     * in order. A trip with an archive may still have segments that could not be deleted;
+     * the archive holds them all. Returns an empty array if there is no such trip.
+     */
+    public static File[] findTrip(File directory, String tripName) {
+        File[] files = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().endsWith(TripLogFormat.FILE_SUFFIX)
+                        || file.getName().endsWith(TripArchiveFormat.FILE_SUFFIX);
+            }
+        });
+        if (files == null || files.length == 0) {
+            return new File[0];
+        }
+        // A trip's segments sort before its archive, and trips chronologically.
+        Arrays.sort(files);
+        String prefix = tripName;
+        if (prefix == null) {
+            prefix = TripCompactor.getTripName(files[files.length - 1]);
+        }
+        File archive = null;
+        int count = 0;
+        for (File file : files) {
+            if (!file.getName().startsWith(prefix)) {
+                continue;
+            }
+            if (file.getName().endsWith(TripLogFormat.FILE_SUFFIX)) {
+                files[count++] = file;
+            } else if (archive == null) {
+                archive = file;
+            }
+        }
+        if (archive != null) {
+            return new File[] { archive };
+        }
+        return Arrays.copyOf(files, count);
+    }
+
+    /**
+     * Stops the replay at the next record.
+     */
+    public void quit() {
+        mShouldRun = false;
+        LockSupport.unpark(this);
+    }
+
+    @Override
+    public void run() {
+        Log.v(TAG, "replaying " + mSegments.length + " segments at speed " + mSpeed);
+        long start = System.nanoTime();
+        ReplayStream stream = new ReplayStream();
+        try {
+            mIngest.run(stream);
+        } catch (IOException e) {
+            Log.e(TAG, "replay failed", e);
+        } finally {
+            stream.close();
+        }
+        long elapsed = System.nanoTime() - start;
+        Log.v(TAG, String.format(Locale.US, "replayed %d samples in %.1f s, %.0f samples/s",
+                mIngest.getSampleCount(), elapsed / 1e9,
+                mIngest.getSampleCount() * 1e9 / Math.max(1, elapsed)));
+    }
+
+    /**
+     * Serves the recorded samples as a paced stream of Torque records.
+     */
+    private class ReplayStream extends InputStream {
+        private final byte[] mRecord = new byte[FRAME_SIZE];
+        private final int[] mValues = new int[ObdSampleDecoder.FIELD_COUNT];
+        private final byte[] mOneByte = new byte[1];
+        // Part of mRecord not yet returned by read().
+        private int mPendingOffset = FRAME_SIZE;
+
+        // Segment being replayed, or block when replaying an archive.
+        private int mSegment = -1;
+        private TripArchive mArchive;
+        private TelemetryHistory.Range mArchiveBlock;
+        private RandomAccessFile mFile;
+        private MappedByteBuffer mBuffer;
+        private int mChannelCount;
+        private int mRecordSize;
+        private long mRecordCount;
+        private long mRecordIndex;
+
+        private long mFirstTimestamp;
+        private long mPlaybackStart;
+        private boolean mStarted;
+
+        @Override
+        public int read() throws IOException {
+            return read(mOneByte, 0, 1) < 0 ? -1 : mOneByte[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int count = 0;
+            while (count < length) {
+                if (mPendingOffset == FRAME_SIZE) {
+                    // Block for the first record of a read only; later ones must already be due.
+                    if (!nextRecord(count == 0)) {
+                        break;
+                    }
+                }
+                int n = Math.min(FRAME_SIZE - mPendingOffset, length - count);
+                System.arraycopy(mRecord, mPendingOffset, buffer, offset + count, n);
+                mPendingOffset += n;
+                count += n;
+            }
+            return count == 0 ? -1 : count;
+        }
+
+        /**
+         * Encodes the next record into {@link #mRecord}.
+         *
+         * @param wait true to wait until the record is due, false to give up if it isn't
+         * @return false at the end of the trip, when stopped or if the record isn't due yet
+         */
+        private boolean nextRecord(boolean wait) throws IOException {
+            if (!mShouldRun || !ensureRecord()) {
+                return false;
+            }
+            // Offset of the record's values in the segment; archives are read by block.
+            int position = 0;
+            long timestamp;
+            if (mArchive != null) {
+                timestamp = mArchiveBlock.timestamps[(int) mRecordIndex];
+            } else {
+                position = TripLogFormat.HEADER_SIZE + (int) (mRecordIndex * mRecordSize);
+                timestamp = mBuffer.getLong(position);
+                position += 8;
+            }
+
+            if (mSpeed > 0) {
+                if (!mStarted) {
+                    mStarted = true;
+                    mFirstTimestamp = timestamp;
+                    mPlaybackStart = System.nanoTime();
+                }
+                long due = mPlaybackStart + (long) ((timestamp - mFirstTimestamp) / mSpeed);
+                long delay = due - System.nanoTime();
+                if (delay > 0) {
+                    if (!wait) {
+                        return false;
+                    }
+                    while (delay > 0 && mShouldRun) {
+                        LockSupport.parkNanos(delay);
+                        delay = due - System.nanoTime();
+                    }
+                    if (!mShouldRun) {
+                        return false;
+                    }
+                }
+            }
+
+            for (int i = 0; i < mValues.length; i++) {
+                if (i >= mChannelCount) {
+                    mValues[i] = 0;
+                } else if (mArchive != null) {
+                    mValues[i] = mArchiveBlock.values[i][(int) mRecordIndex];
+                } else {
+                    mValues[i] = mBuffer.getInt(position + 4 * i);
+                }
+            }
+            mRecordIndex++;
+            encode();
+            return true;
+        }
+
+        /**
+         * Makes sure {@link #mRecordIndex} points at a record, opening the next segment if
+         * needed.
+         *
+         * @return false at the end of the trip
+         */
+        private boolean ensureRecord() throws IOException {
+            if (mArchive != null || isArchive()) {
+                return ensureArchiveRecord();
+            }
+            while (mBuffer == null || mRecordIndex >= mRecordCount) {
+                close();
+                if (++mSegment >= mSegments.length) {
+                    return false;
+                }
+                mFile = new RandomAccessFile(mSegments[mSegment], "r");
+                FileChannel channel = mFile.getChannel();
+                mBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (!TripLogFormat.checkHeader(mBuffer)) {
+                    Log.w(TAG, "skipping unreadable segment " + mSegments[mSegment]);
+                    mBuffer = null;
+                    continue;
+                }
+                mChannelCount = mBuffer.getShort(TripLogFormat.OFFSET_CHANNEL_COUNT);
+                mRecordSize = mBuffer.getInt(TripLogFormat.OFFSET_RECORD_SIZE);
+                mRecordCount = TripLogFormat.recordCount(mBuffer);
+                mRecordIndex = 0;
+            }
+            return true;
+        }
+
+        private boolean isArchive() {
+            return mSegments.length == 1
+                    && mSegments[0].getName().endsWith(TripArchiveFormat.FILE_SUFFIX);
+        }
+
+        /**
+         * Like {@link #ensureRecord()} for an archive, decoding the next block if needed.
+         */
+        private boolean ensureArchiveRecord() throws IOException {
+            if (mArchive == null) {
+                mArchive = new TripArchive(mSegments[0]);
+                mArchiveBlock = new TelemetryHistory.Range(
+                        mArchive.getChannelCount(), TripArchiveFormat.BLOCK_SAMPLES);
+                mChannelCount = mArchive.getChannelCount();
+            }
+            while (mRecordIndex >= mRecordCount) {
+                if (++mSegment >= mArchive.getBlockCount()) {
+                    return false;
+                }
+                mRecordCount = mArchive.readBlock(mSegment, mArchiveBlock);
+                mRecordIndex = 0;
+            }
+            return true;
+        }
+
+        /**
+         * Writes {@link #mValues} into {@link #mRecord} as a padded Torque text record.
+         */
+        private void encode() {
+            int position = 0;
+            for (int i = 0; i < mValues.length; i++) {
+                if (i > 0) {
+                    mRecord[position++] = '\t';
+                }
+                position = IntFormatter.formatInt(mValues[i], mRecord, position);
+            }
+            while (position < FRAME_SIZE) {
+                mRecord[position++] = ' ';
+            }
+            mPendingOffset = 0;
+        }
+
+        @Override
+        public void close() {
+            mBuffer = null;
+            if (mArchive != null) {
+                mArchive.close();
+            }
+            if (mFile != null) {
+                try {
+                    mFile.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "file close exception:", e);
+                }
+                mFile = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.glassista.android.glass.ObdHud;
+
+import java.util.Locale;
+
+/**
+ * Aggregates of the current trip, updated as samples arrive: speed, distance, time in each
+ * gear, rpm and throttle histograms and time over redline.
+ * <p>
+ * Every accumulator is a fixed size primitive, so a sample costs a handful of additions and
+ * nothing is allocated or rescanned. Each sample's values are held until the next one, and the
+ * interval between them is credited to them; longer gaps, such as a dropped link, are not.
+ * <p>
+ * Runs as a {@link TelemetryBus} processor, off the ingest thread. {@link #getSummary()} may
+ * be called from any thread.
+ */
+public class TripStatistics implements TelemetryBus.Handler {
+
+    /**
+     * Redline of the F800ST, from which rpm counts as time over redline by default.
+     */
+    public static final int DEFAULT_REDLINE_RPM = 8500;
+
+    /**
+     * Longest interval, in nanoseconds, between samples that is credited to the trip.
+     */
+    private static final long MAX_GAP_NANOS = 1000000000L;
+
+    private static final int MAX_GEAR = 8;
+
+    private static final int RPM_BUCKET_WIDTH = 500;
+    private static final int RPM_BUCKETS = 16;
+
+    private static final int THROTTLE_BUCKET_WIDTH = 10;
+    private static final int THROTTLE_BUCKETS = 11;
+
+    private static final double NANOS_PER_HOUR = 3600e9;
+
+    private final int mRedlineRpm;
+
+    // Guarded by this; written once per batch by the processor thread.
+    private long mSampleCount;
+    private long mFirstNanos;
+    private long mLastNanos;
+    private long mMovingNanos;
+    private long mTotalNanos;
+    private int mMaxSpeed;
+    private int mMaxRpm;
+    // Integral of speed over time, in mph nanoseconds.
+    private double mSpeedNanos;
+    private long mRedlineNanos;
+    private final long[] mGearNanos = new long[MAX_GEAR + 1];
+    private final long[] mRpmNanos = new long[RPM_BUCKETS];
+    private final long[] mThrottleNanos = new long[THROTTLE_BUCKETS];
+
+    // The values held since the last sample.
+    private int mSpeed;
+    private int mRpm;
+    private int mThrottle;
+    private int mGear;
+
+    public TripStatistics(int redlineRpm) {
+        mRedlineRpm = redlineRpm;
+    }
+
+    @Override
+    public synchronized void onSamples(TelemetryHistory.Range samples) {
+        int[] speeds = samples.values[ChannelRegistry.CHANNEL_SPEED];
+        int[] rpms = samples.values[ChannelRegistry.CHANNEL_RPM];
+        int[] throttles = samples.values[ChannelRegistry.CHANNEL_THROTTLE];
+        int[] gears = samples.values[ChannelRegistry.CHANNEL_GEAR];
+        for (int i = 0; i < samples.count; i++) {
+            long timestamp = samples.timestamps[i];
+            if (mSampleCount == 0) {
+                mFirstNanos = timestamp;
+            } else {
+                long elapsed = timestamp - mLastNanos;
+                if (elapsed > 0 && elapsed <= MAX_GAP_NANOS) {
+                    credit(elapsed);
+                }
+            }
+            mLastNanos = timestamp;
+            mSampleCount++;
+
+            mSpeed = Math.max(0, speeds[i]);
+            mRpm = Math.max(0, rpms[i]);
+            mThrottle = Math.max(0, throttles[i]);
+            mGear = gears[i];
+            if (mSpeed > mMaxSpeed) {
+                mMaxSpeed = mSpeed;
+            }
+            if (mRpm > mMaxRpm) {
+                mMaxRpm = mRpm;
+            }
+        }
+    }
+
+    /**
+     * Credits {@code elapsed} nanoseconds to the held values.
+     */
+    private void credit(long elapsed) {
+        mTotalNanos += elapsed;
+        if (mSpeed > 0) {
+            mMovingNanos += elapsed;
+            mSpeedNanos += (double) mSpeed * elapsed;
+        }
+        if (mGear >= 0 && mGear <= MAX_GEAR) {
+            mGearNanos[mGear] += elapsed;
+        }
+        mRpmNanos[Math.min(mRpm / RPM_BUCKET_WIDTH, RPM_BUCKETS - 1)] += elapsed;
+        mThrottleNanos[Math.min(mThrottle / THROTTLE_BUCKET_WIDTH, THROTTLE_BUCKETS - 1)] +=
+                elapsed;
+        if (mRpm >= mRedlineRpm) {
+            mRedlineNanos += elapsed;
+        }
+    }
+
+    /**
+     * Returns the distance covered so far, in miles.
+     */
+    public synchronized double getDistanceMiles() {
+        return mSpeedNanos / NANOS_PER_HOUR;
+    }
+
+    /**
+     * Returns the average speed while moving, in mph.
+     */
+    public synchronized double getAverageMovingSpeed() {
+        return mMovingNanos == 0 ? 0 : mSpeedNanos / mMovingNanos;
+    }
+
+    public synchronized int getMaxSpeed() {
+        return mMaxSpeed;
+    }
+
+    /**
+     * Returns the time spent in {@code gear}, in nanoseconds; gear 0 is neutral.
+     */
+    public synchronized long getGearNanos(int gear) {
+        return gear >= 0 && gear <= MAX_GEAR ? mGearNanos[gear] : 0;
+    }
+
+    public synchronized long getRedlineNanos() {
+        return mRedlineNanos;
+    }
+
+    /**
+     * Returns the trip so far as text for a card.
+     */
+    public synchronized String getSummary() {
+        if (mSampleCount == 0) {
+            return "No samples yet";
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "%.1f mi in %s, %s moving\n",
+                getDistanceMiles(), formatDuration(mLastNanos - mFirstNanos),
+                formatDuration(mMovingNanos)));
+        sb.append(String.format(Locale.US, "speed avg %.0f max %d mph, rpm max %d\n",
+                getAverageMovingSpeed(), mMaxSpeed, mMaxRpm));
+        sb.append(String.format(Locale.US, "over %d rpm %s\n",
+                mRedlineRpm, formatDuration(mRedlineNanos)));
+
+        sb.append("gear");
+        for (int gear = 0; gear <= MAX_GEAR; gear++) {
+            if (mGearNanos[gear] > 0) {
+                sb.append(' ').append(gear == 0 ? "N" : Integer.toString(gear)).append(' ')
+                        .append(percent(mGearNanos[gear])).append('%');
+            }
+        }
+        sb.append("\nrpm");
+        appendHistogram(sb, mRpmNanos, RPM_BUCKET_WIDTH);
+        sb.append("\nthrottle");
+        appendHistogram(sb, mThrottleNanos, THROTTLE_BUCKET_WIDTH);
+        return sb.toString();
+    }
+
+    private void appendHistogram(StringBuilder sb, long[] bucketNanos, int width) {
+        for (int bucket = 0; bucket < bucketNanos.length; bucket++) {
+            if (bucketNanos[bucket] > 0) {
+                sb.append(' ').append(bucket * width).append(':')
+                        .append(percent(bucketNanos[bucket])).append('%');
+            }
+        }
+    }
+
+    private long percent(long nanos) {
+        return mTotalNanos == 0 ? 0 : Math.round(100.0 * nanos / mTotalNanos);
+    }
+
+    private static String formatDuration(long nanos) {
+        long seconds = nanos / 1000000000L;
+        return String.format(Locale.US, "%d:%02d:%02d",
+                seconds / 3600, seconds / 60 % 60, seconds % 60);
+    }
+}